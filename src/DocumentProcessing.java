@@ -25,6 +25,11 @@ public class DocumentProcessing
             parseBuffer(args[0]);
     }
 
+    // Create regular expression, make it into pattern (flagged case insensitive)
+    // <A <space> <arbitrary> <space if <arbitrary> exists> href <maybe space> = <maybe space> <" or '> some_url <" or '> <arbitrary> >
+    static final String LINK_REGEX = "[<≺]A(\\s|\\s[\\s\\S]*?\\s)href\\s*=\\s*[\"'](.*?)[\"'][\\s\\S]*?[>≻]";
+    static final Pattern LINK_PATTERN = Pattern.compile(LINK_REGEX, Pattern.CASE_INSENSITIVE);
+
     public interface URLhandler
     {
         void takeUrl(String url);
@@ -47,13 +52,11 @@ public class DocumentProcessing
      */
     public static void parseBuffer(CharSequence data)
     {
-        debug("Working on: " + data.toString());
+        if (DEBUG)
+            debug("Working on: " + data.toString());
 
-        // Create regular expression, make it into pattern (flagged case insensitive), and then match it in data
-        // <A <space> <arbitrary> <space if <arbitrary> exists> href <maybe space> = <maybe space> <" or '> some_url <" or '> <arbitrary> >
-        String regex = "[<≺]A(\\s|\\s[\\s\\S]*?\\s)href\\s*=\\s*[\"'](.*?)[\"'][\\s\\S]*?[>≻]";
-        Pattern pattern = Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
-        Matcher matcher = pattern.matcher(data);
+        // match the pattern in data
+        Matcher matcher = LINK_PATTERN.matcher(data);
 
         String url;
         while (matcher.find())
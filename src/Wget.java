@@ -1,5 +1,6 @@
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 public class Wget
@@ -126,17 +127,60 @@ public class Wget
         sleep(500);
     }
 
+    public static void asyncDownload(int maxInFlight, String initialURL)
+    {
+        final URLQueue queue = new SynchronizedListQueue();
+        final HashSet<String> seen = new HashSet<String>();
+
+        // defines a new URLhandler, called from a download worker while a page is parsed
+        DocumentProcessing.handler = new DocumentProcessing.URLhandler()
+        {
+            // this method will be called for each matched url
+            @Override
+            public void takeUrl(String url)
+            {
+                synchronized (mutex_seen)
+                {
+                    if (seen.add(url))
+                        queue.enqueue(url);
+                }
+            }
+        };
+
+        // to start, we push the initial url into the queue
+        DocumentProcessing.handler.takeUrl(initialURL);
+        final Semaphore slots = new Semaphore(maxInFlight);
+        while (true)
+        {
+            if (!queue.isEmpty())
+            {
+                // a page's links are queued before its download completes and gives back its slot
+                slots.acquireUninterruptibly();
+                Xurl.downloadAsync(queue.dequeue()).whenComplete((response, e) -> slots.release());
+            }
+            else if (slots.availablePermits() == maxInFlight && queue.isEmpty()) // nothing in flight can add more
+                break;
+            else
+                sleep(1);
+        }
+    }
+
     public static void main(String[] args)
     {
-        if (args.length < 1)
+        if (args.length < 2)
         {
-          System.err.println("Usage: java Wget url");
+          System.err.println("Usage: java Wget <pool size or max in flight> url (pool|async, default pool)");
           System.exit(-1);
         }
         
 //        iterativeDownload(args[0]);
 //        multiThreadedDownload(args[0]);
-        threadPoolDownload(Integer.parseInt(args[0]), args[1]);
+//        threadPoolDownload(Integer.parseInt(args[0]), args[1]);
+//        asyncDownload(Integer.parseInt(args[0]), args[1]);
+        if (args.length > 2 && args[2].equals("async"))
+            asyncDownload(Integer.parseInt(args[0]), args[1]);
+        else
+            threadPoolDownload(Integer.parseInt(args[0]), args[1]);
     }
 
     static void sleep(int milliseconds)
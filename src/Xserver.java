@@ -9,392 +9,433 @@
 *           the class creates an HTTP server socket and spawns required number of threads
 *           when a connection is established, the client socket in enqueued and threads take over the processing
 *           contains main()
-*       * class XserverThread implements the thread for Xserver
-*           in dequeues a client socket and passes it onto a newly created XServerProcessor class
-*           thread terminates when interrupted
-*       * class XServerProcessor handles the communication with the client, including request processing
-*           it is single use and blocking - constructor returns only when the client is closed
+*           in pool mode a client socket is enqueued, an XserverThread of the elastic XserverPool dequeues it
+*           and passes it onto a newly created XServerProcessor, see XserverProcessor
+*           in virtual mode there is no pool, each client socket gets a XServerProcessor on its own virtual thread
 *
 *       Usage:
 *           java xserver  <Server port, Int>  <full root directory path, String>  (<thread pool size, Int, default 1>)
+*                         (<mode, String, pool|virtual|nio, default pool>)
+*           in pool mode the pool size is the core size of the elastic pool, see XserverPool for its configuration
+*           in nio mode the pool size is the number of event loop threads, in virtual mode it is ignored
+*           small files are served from a shared response cache, see XserverCache for its configuration
+*           with -Dxserver.index=true paths are resolved from a pre-built index of the root, see XserverIndex
+*           conditional GETs (ETag, Last-Modified) are answered with 304, Range requests with 206 streamed from
+*           the file (several ranges as multipart/byteranges) or 416
+*           text files are sent gzip compressed to clients accepting it, from a fresh .gz sibling or compressed
+*           once per file version and cached (files up to -Dxserver.gzip_max bytes, default 1 MB),
+*           -Dxserver.gzip=false turns it off
+*           with -Dxserver.listing=true directories are answered with an HTML listing, streamed with
+*           Transfer-Encoding: chunked while the directory is read, see XserverListing
+*           HTTP/2 over cleartext (h2c, with prior knowledge or by Upgrade) multiplexes the requests of a connection,
+*           see XserverH2, -Dxserver.h2=false turns it off
+*           response heads are copied together from pre-encoded parts and a Date refreshed every second, see XserverHead
+*           keep-alive connections are closed after -Dxserver.idle_timeout ms without a request (default 10000)
+*           or after -Dxserver.max_requests requests (default 1000), whichever comes first
+*           at most -Dxserver.queue_capacity accepted sockets wait for a pool thread (default 1024), beyond that
+*           connections are shed according to -Dxserver.shed_policy: 503 (with Retry-After: -Dxserver.retry_after s,
+*           default 1) or close
+*           -Dxserver.client_connections caps the open connections and -Dxserver.client_rate the requests per second
+*           of every client address, over the limit it gets a 429, see XserverLimiter
+*           request counters and latency histograms are served on /__metrics, see XserverMetrics
+*           -Dxserver.acceptors=N runs N accept loops, each with its own SO_REUSEPORT socket and worker group
+*           (pool size and queue capacity are split between them, in nio mode the event loops are)
+*           every request is written to the access log, see XserverAccessLog, debug output needs -Dxserver.debug=true
 *           without any incoming connection the server closes after 40s (default)
+*           on shutdown() or SIGTERM/SIGINT the server stops accepting and drains: idle connections (between
+*           requests, or that sent nothing yet) are closed, in-flight requests (and queued clients) are answered
+*           with Connection: close, whatever is still open after -Dxserver.drain_timeout ms (default 10000)
+*           is closed, then a summary is printed
  */
 
 import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 public class Xserver
 {
-    static boolean DEBUG = true;
+    static boolean DEBUG = Boolean.getBoolean("xserver.debug");
+    static int QUEUE_CAPACITY = Integer.getInteger("xserver.queue_capacity", 1024);
+    static String SHED_POLICY = System.getProperty("xserver.shed_policy", "503");   // 503 or close
+    static int RETRY_AFTER = Integer.getInteger("xserver.retry_after", 1);           // s, sent with 503
+
+    static int ACCEPTORS = Integer.getInteger("xserver.acceptors", 1);
+    static int DRAIN_TIMEOUT = Integer.getInteger("xserver.drain_timeout", 10000);  // ms
+    static volatile boolean exiting = false; // error() ends the process, there is no drain to wait for
 
     int timeout = 40000;
-    ServerSocket xsrv_socket;
-    ArrayList<Thread> thread_list;
-    BlockingQueue<Socket> client_queue;
+    ServerSocket[] xsrv_sockets;        // one per acceptor, or the same shared one without SO_REUSEPORT
+    XserverPool[] pools;                // one per acceptor
+    ExecutorService virtual_executor;
+    String root;
+    AtomicLong shed_cnt = new AtomicLong();
+    AtomicInteger max_queue_depth = new AtomicInteger();
+    volatile long last_accept = System.currentTimeMillis();
+    volatile boolean stopping = false;
+    CountDownLatch stopped = new CountDownLatch(1);
+    byte[] response503;
 
     public Xserver(int port, String root, int pool_size)
     {
-        client_queue = new LinkedBlockingQueue<>();
+        this(port, root, pool_size, "pool");
+    }
+
+    public Xserver(int port, String root, int pool_size, String mode)
+    {
+        this.root = root;
+        if (!SHED_POLICY.equals("503") && !SHED_POLICY.equals("close"))
+            error("Invalid xserver.shed_policy " + SHED_POLICY + ", expected 503 or close");
+        int acceptors = Math.max(ACCEPTORS, 1);
+        response503 = ("HTTP/1.1 503 Service Unavailable\r\n" +
+                "Retry-After: " + RETRY_AFTER + "\r\n" +
+                "Content-Length: " + XserverProcessor.message503().length() + "\r\n" +
+                "Connection: close\r\n\r\n" +
+                XserverProcessor.message503()).getBytes(StandardCharsets.ISO_8859_1);
+
+        // channel backed, so the accepted sockets have a SocketChannel for zero-copy file transfers
+        xsrv_sockets = new ServerSocket[acceptors];
+        ServerSocketChannel[] channels = listen(port, acceptors);
         try
         {
-            xsrv_socket = new ServerSocket(port);
-            xsrv_socket.setSoTimeout(timeout);
+            for (int i = 0; i < acceptors; i++)
+            {
+                xsrv_sockets[i] = channels[i].socket();
+                xsrv_sockets[i].setSoTimeout(timeout);
+            }
         } catch (IOException e) {
             error("Failed to open Server on port " + port, e.getMessage());
-            System.exit(-1);
         }
 
-        // start threads
-        thread_list = new ArrayList<>();
-        for (int i = 0; i < pool_size; i++)
+        XserverProcessor.cache = XserverCache.open(root);
+        XserverProcessor.index = XserverIndex.open(root);
+        XserverAccessLog.open();
+        XserverLimiter.open();
+
+        // start threads, in virtual mode every connection gets its own thread instead
+        if (mode.equals("virtual"))
+            virtual_executor = newVirtualExecutor();
+        XserverH2.open(virtual_executor);
+        if (virtual_executor == null)
         {
-            Thread thread = new Thread(new XserverThread(client_queue, root));
-            thread.start();
-            thread_list.add(thread);
+            // every acceptor has its own worker group, the sizes are split between them
+            pools = new XserverPool[acceptors];
+            for (int i = 0; i < acceptors; i++)
+                pools[i] = new XserverPool(Math.max(QUEUE_CAPACITY / acceptors, 1), root,
+                        (pool_size + acceptors - 1) / acceptors);
+            XserverMetrics.gauge("xserver_queue_depth", this::queueDepth);
+            XserverMetrics.gauge("xserver_queue_wait_ms",
+                    () -> Arrays.stream(pools).mapToLong(XserverPool::oldestWait).max().orElse(0));
+            XserverMetrics.gauge("xserver_pool_threads", () -> Arrays.stream(pools).mapToLong(XserverPool::size).sum());
+            XserverMetrics.gauge("xserver_shed_connections", this::shedCount);
         }
+        Runtime.getRuntime().addShutdownHook(new Thread(this::onSignal, "xserver-shutdown"));
 
-        // main loop
-        while (true)
+        // main loop, the first acceptor runs on this thread
+        Thread[] acceptor_threads = new Thread[acceptors];
+        for (int i = 1; i < acceptors; i++)
         {
-            try
-            {
-                Socket client_socket = xsrv_socket.accept();
-                if (client_socket != null)
-                    handleConnection(client_socket);
-            } catch (SocketTimeoutException e) {
-                break; // we use timeout as termination method
-            } catch (IOException e) {
-                error("Failed to listen to connection", e.getMessage());
-            }
+            final int acceptor = i;
+            acceptor_threads[i] = new Thread(() -> acceptLoop(acceptor), "xserver-acceptor-" + i);
+            acceptor_threads[i].start();
         }
+        acceptLoop(0);
+        shutdown(); // after a timeout, stops the other acceptors too
+        for (int i = 1; i < acceptors; i++)
+            try {
+                acceptor_threads[i].join();
+            } catch (InterruptedException ignored) {}
+
+        // no new connections, let the open ones finish before the threads go
+        drain();
 
         // end threads
-        for (Thread thread : thread_list)
-            thread.interrupt();
-        try {
-            xsrv_socket.close();
-        } catch (IOException e) {
-            error("Failed to close server", e.getMessage());
-        }
-        sleep(500);
+        if (pools != null)
+            for (XserverPool pool : pools)
+                pool.shutdown();
+        if (virtual_executor != null)
+            virtual_executor.shutdownNow();
+        if (XserverProcessor.cache != null)
+            XserverProcessor.cache.close();
+        if (XserverProcessor.index != null)
+            XserverProcessor.index.close();
+        XserverAccessLog.close();
+        if (pools != null)
+            debug("Shed " + shedCount() + " connections, max queue depth " + max_queue_depth + "/" + QUEUE_CAPACITY
+                    + ", peak pool size " + Arrays.stream(pools).mapToInt(pool -> pool.peak_size).sum());
+        stopped.countDown();
     }
 
-    void handleConnection(Socket socket)
+    // stop accepting, the server then drains its connections and the constructor returns
+    public void shutdown()
     {
-        try
-        {
-            client_queue.put(socket);
-        } catch (InterruptedException e) {
-            error("Program interrupted", e.getMessage());
+        if (stopping)
+            return;
+        stopping = true;
+        try {
+            for (ServerSocket xsrv_socket : xsrv_sockets)
+                xsrv_socket.close(); // wakes up the accept loops
+        } catch (IOException e) {
+            debug("Failed to close server: " + e.getMessage());
         }
     }
 
-    public static void main(String[] args)
-    {
-        // args: int port, String root, int pool_size
-        if (args.length == 2) // no thread pool
-            try
-            {
-                new Xserver(Integer.parseInt(args[0]), args[1], 1);
-            } catch (NumberFormatException e) {
-                error("Invalid argument", e.getMessage());
-            }
-        else if (args.length == 3) // thread pool
-            try
-            {
-                new Xserver(Integer.parseInt(args[0]), args[1], Integer.parseInt(args[2]));
-            } catch (NumberFormatException e) {
-                error("Invalid argument", e.getMessage());
-            }
-        else
-            error("Invalid number (" + args.length + ") of arguments given");
-    }
-
-    //
-    // MACROS
-    //
-
-    // sleep in ms
-    static void sleep(int milliseconds)
+    // shutdown hook (SIGTERM, SIGINT), the JVM exits once the server is drained
+    void onSignal()
     {
+        shutdown();
+        if (exiting) // nothing drains after error(), the process ends now
+            return;
         try {
-            TimeUnit.MILLISECONDS.sleep(milliseconds);
+            stopped.await(DRAIN_TIMEOUT + 1000L, TimeUnit.MILLISECONDS);
         } catch (InterruptedException ignored) {}
     }
 
-    // methods for handling errors, because I'm lazy to type it out each time
-    static void error(String err_msg)
+    // close idle connections, wait for the in-flight ones until the deadline, then close what is left
+    void drain()
     {
-        System.err.println("Error: " + err_msg);
-        System.exit(1);
+        long start = System.currentTimeMillis();
+        int idle = XserverProcessor.drainIdle();
+        int in_flight = XserverProcessor.active.size() - idle + queueDepth();
+
+        // pool threads keep serving queued clients, one request each
+        while ((!XserverProcessor.active.isEmpty() || queueDepth() > 0)
+                && System.currentTimeMillis() - start < DRAIN_TIMEOUT)
+            sleep(10);
+
+        int forced = XserverProcessor.closeAll() + queueDepth();
+        if (pools != null)
+            for (XserverPool pool : pools)
+                pool.closeQueued();
+        drained(System.currentTimeMillis() - start, in_flight, idle, forced);
     }
 
-    // overriding for the case of caught exception
-    static void error(String err_msg, String excep_msg)
+    // summary of a drain, shared with the event loop engine
+    static void drained(long ms, int in_flight, int idle, int forced)
     {
-        System.err.println("Error: " + err_msg);
-        System.err.println("This error was caused by the following exception:");
-        System.err.println(excep_msg);
-        System.exit(1);
+        System.out.println("Drained in " + ms + " ms: " + Math.max(in_flight - forced, 0) + " in-flight finished, "
+                + idle + " idle closed, " + forced + " forced closed");
     }
 
-    // debug method
-    static void debug(String msg)
+    static void closeQuietly(Socket socket)
     {
-        if (DEBUG)
-            System.out.println(msg);
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
     }
-}
-
 
-class XserverThread implements Runnable
-{
-    BlockingQueue<Socket> queue;
-    String root;
-
-    public XserverThread(BlockingQueue<Socket> queue, String root)
+    // listening channels for the given number of acceptors, each its own with SO_REUSEPORT, so the kernel
+    // spreads the connections, otherwise they all share one
+    static ServerSocketChannel[] listen(int port, int acceptors)
     {
-        this.queue = queue;
-        this.root = root;
+        ServerSocketChannel[] channels = new ServerSocketChannel[acceptors];
+        try
+        {
+            for (int i = 0; i < acceptors; i++)
+            {
+                ServerSocketChannel channel = ServerSocketChannel.open();
+                if (acceptors > 1 && !channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT))
+                {
+                    debug("SO_REUSEPORT unsupported, acceptors share one socket");
+                    channel.bind(new InetSocketAddress(port));
+                    Arrays.fill(channels, channel);
+                    return channels;
+                }
+                if (acceptors > 1)
+                    channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                channel.bind(new InetSocketAddress(port));
+                channels[i] = channel;
+            }
+        } catch (IOException e) {
+            error("Failed to open Server on port " + port, e.getMessage());
+        }
+        return channels;
     }
 
-    @Override
-    public void run()
+    void acceptLoop(int acceptor)
     {
-        while (true)
+        ServerSocket xsrv_socket = xsrv_sockets[acceptor];
+        XserverPool pool = pools == null ? null : pools[acceptor];
+        while (!stopping)
         {
             try
             {
-                Socket socket = queue.take();
-                new XserverProcessor(socket, root);
-            } catch (InterruptedException e) {
-                break; // interrupt = terminate thread
+                Socket client_socket = xsrv_socket.accept();
+                last_accept = System.currentTimeMillis();
+                if (client_socket != null)
+                    handleConnection(client_socket, pool);
+            } catch (SocketTimeoutException e) {
+                // we use timeout as termination method, once no acceptor has seen a connection for that long
+                if (System.currentTimeMillis() - last_accept >= timeout)
+                    break;
+            } catch (IOException e) {
+                if (stopping) // socket closed by shutdown()
+                    break;
+                error("Failed to listen to connection", e.getMessage());
             }
         }
     }
-}
-
 
-class XserverProcessor
-{
-    Socket socket;
-    PrintStream writer;
-    BufferedReader reader;
-    BufferedReader file_reader;
-    List<String> req_header;
-    String path;
-    String file;
-    int response_ok = 200;
-    Boolean file_exist;
-    String root_dir;
-
-    public XserverProcessor(Socket client_socket, String root)
+    void handleConnection(Socket socket, XserverPool pool)
     {
-        socket = client_socket;
-        root_dir = root;
-
-        openConnection();
-
-        // main loop
-        do
+        // a client over its connection cap is refused before it takes a queue slot
+        XserverLimiter limiter = XserverLimiter.limiter;
+        String client = limiter != null ? socket.getInetAddress().getHostAddress() : null;
+        if (limiter != null && !limiter.connect(client))
         {
-            processRequest();
-            sleep(100);
+            XserverMetrics.count(429, limiter.response429.length);
+            refuse(socket, limiter.response429);
+            return;
         }
-        while (!socket.isClosed() && (response_ok == 200 || response_ok == 404));
-
-        closeConnection();
-    }
 
-    void openConnection()
-    {
-        try
+        if (virtual_executor != null)
         {
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            writer = new PrintStream(socket.getOutputStream());
-        } catch (IOException e) {
-            error("Failed to set up buffered reader/writer", e.getMessage());
+            virtual_executor.execute(() -> new XserverProcessor(socket, root));
+            return;
         }
-    }
 
-    void processRequest()
-    {
-        file_exist = true;
-        response_ok = 200;
-        if (!readHeader())
+        // never wait for the workers here, a full queue means we are overloaded
+        if (!pool.offer(socket))
         {
-            response_ok = 600; // connection closed
+            shed(socket);
+            if (limiter != null)
+                limiter.disconnect(client);
             return;
         }
-        if (!analyzeHeader()) {
-            path = ":tag:bad_request";
-            response_ok = 400;
-            debug("BAD REQUEST");
-        }
-        getFile();
-
-        writeResponse(response_ok);
+        max_queue_depth.accumulateAndGet(pool.queueDepth(), Math::max);
     }
 
+    // refuse a connection the workers have no room for
+    void shed(Socket socket)
+    {
+        shed_cnt.incrementAndGet();
+        XserverMetrics.count(503, SHED_POLICY.equals("503") ? response503.length : 0);
+        refuse(socket, SHED_POLICY.equals("503") ? response503 : null);
+    }
 
-    boolean readHeader()
+    // answer a fresh connection with the given response (if any) and close it, shared with the event loop engine
+    static void refuse(Socket socket, byte[] response)
     {
-        req_header = new ArrayList<>();
-        try {
-            for (int i = 0; ; i++) {
-                String line = reader.readLine();
-                debug(line);
-                req_header.add(line + "\r\n");
-
-                if (line == null)
-                    return false;
-                if (line.equals(""))
-                    break;
+        try
+        {
+            if (response != null)
+            {
+                // fits in the socket buffer of a fresh connection, does not block the accept loop
+                socket.getOutputStream().write(response);
+                socket.shutdownOutput();
+                // drop what the client already sent, closing with unread data would reset the response
+                InputStream in = socket.getInputStream();
+                in.skip(in.available());
             }
+            socket.close();
         } catch (IOException e) {
-            error("Failed to read header", e.getMessage());
+            debug("Failed to refuse connection: " + e.getMessage());
         }
-        return true;
     }
 
-    boolean analyzeHeader()
+    int queueDepth()
     {
-        Pattern r = Pattern.compile("(GET) (/[^ ]*) (HTTP/1.1)$");
-        Matcher m = r.matcher(req_header.get(0));
-
-        debug("HERE IS HEADER");
-        // http request
-        if (!m.find()) {
-            return false;
-        }
-        debug("HERE IS HEADER");
-        // path
-        path = m.group(2);
-
-        // host
-        r = Pattern.compile("^(Host:).+");
-        m = r.matcher(req_header.get(1));
-        if (!m.find()) return false;
-
-        return true;
+        return pools == null ? 0 : Arrays.stream(pools).mapToInt(XserverPool::queueDepth).sum();
     }
 
-    void getFile()
+    long shedCount()
     {
-        debug("Path: " + path);
-        if (path.equals(":tag:bad_request"))
-        {
-            file = message400();
-            response_ok = 400;
-            return;
-        }
-        else if (path.equals("/")) {
-            file = messageIndex();
-            return;
-        }
-        else
-        {
-            path = root_dir + path;
-        }
-        debug("Full Path: " + path);
+        return shed_cnt.get();
+    }
 
+    // one virtual thread per task, looked up reflectively so the server still builds on JDKs before 21
+    static ExecutorService newVirtualExecutor()
+    {
         try
         {
-            file = new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8);
-        } catch (IOException e)
-        {
-            file = message404();
-            response_ok = 404;
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Warning: virtual threads need Java 21, falling back to a platform thread per connection");
+            return Executors.newCachedThreadPool();
         }
     }
 
-    void writeResponse(int response_ok)
-    {
-        if (response_ok == 200)
-            writer.println("HTTP/1.1 200 OK");
-        else if (response_ok == 400)
-            writer.println("HTTP/1.1 400 Bad Request");
-        else if(response_ok == 404)
-            writer.println("HTTP/1.1 404 Not Found");
-
-
-        writer.println("Content-Length: " + file.length());
-        writer.println();
-        writer.print(file);
-        writer.flush();
-    }
-
-    void closeConnection()
+    public static void main(String[] args)
     {
-        try
-        {
-            socket.close();
-            reader.close();
-            writer.close();
-            if (file_reader != null)
-                file_reader.close();
-            debug("Connection Closed");
-        } catch (IOException e) {
-            error("Failed to close connection", e.getMessage());
-        }
+        // args: int port, String root, int pool_size, String mode
+        if (args.length == 2) // no thread pool
+            try
+            {
+                new Xserver(Integer.parseInt(args[0]), args[1], 1);
+            } catch (NumberFormatException e) {
+                error("Invalid argument", e.getMessage());
+            }
+        else if (args.length == 3) // thread pool
+            try
+            {
+                new Xserver(Integer.parseInt(args[0]), args[1], Integer.parseInt(args[2]));
+            } catch (NumberFormatException e) {
+                error("Invalid argument", e.getMessage());
+            }
+        else if (args.length == 4) // thread pool or event loops, depending on mode
+            try
+            {
+                int port = Integer.parseInt(args[0]);
+                int pool_size = Integer.parseInt(args[2]);
+                if (args[3].equals("pool") || args[3].equals("virtual"))
+                    new Xserver(port, args[1], pool_size, args[3]);
+                else if (args[3].equals("nio"))
+                    new XserverNio(port, args[1], pool_size);
+                else
+                    error("Invalid mode " + args[3] + ", expected pool, virtual or nio");
+            } catch (NumberFormatException e) {
+                error("Invalid argument", e.getMessage());
+            }
+        else
+            error("Invalid number (" + args.length + ") of arguments given");
     }
 
     //
     // MACROS
     //
 
-    static String message400() {
-        return "Sorry, bad request.\r\n";
-    }
-
-    static String message404() {
-        return "Sorry, not found.\r\n";
-    }
-
-    static String messageIndex() {
-        return "Welcome to my not-page!\r\n";
-    }
-
     // sleep in ms
-    static void sleep(int milliseconds) {
+    static void sleep(int milliseconds)
+    {
         try {
             TimeUnit.MILLISECONDS.sleep(milliseconds);
-        } catch (InterruptedException ignored) {
-        }
+        } catch (InterruptedException ignored) {}
     }
 
     // methods for handling errors, because I'm lazy to type it out each time
-    static void error(String err_msg) {
+    static void error(String err_msg)
+    {
         System.err.println("Error: " + err_msg);
+        Xserver.exiting = true;
         System.exit(1);
     }
 
     // overriding for the case of caught exception
-    static void error(String err_msg, String excep_msg) {
+    static void error(String err_msg, String excep_msg)
+    {
         System.err.println("Error: " + err_msg);
         System.err.println("This error was caused by the following exception:");
         System.err.println(excep_msg);
+        Xserver.exiting = true;
         System.exit(1);
     }
 
     // debug method
     static void debug(String msg)
     {
-        System.out.println(msg);
+        if (DEBUG)
+            System.out.println(msg);
     }
 }
-
-
@@ -0,0 +1,206 @@
+/*
+*       XServerAccessLog - Asynchronous access log of XServer
+*
+*       Architecture:
+*       * processors log one entry per request: time, client, method, path, status, bytes and duration
+*           the duration is wall clock time from the first byte of the request until the response is written
+*           (handed to the event loop in nio mode, complete for streamed bodies)
+*       * entries go into a fixed ring of preallocated slots, a processor claims a slot with one CAS
+*           and publishes it by writing its sequence number, no lock is taken and nothing is allocated
+*       * a single background writer formats the published entries in order and writes them in batches,
+*           flushing when the ring runs empty or a batch is full
+*           an idle writer parks until a producer publishes an entry and unparks it, it never polls
+*       * when the ring is full, entries are dropped (and counted) or the processor waits for the writer,
+*           depending on the configured policy
+*
+*       Configuration (system properties):
+*           xserver.access_log      file to append to, - for standard output, none to disable (default -)
+*           xserver.log_capacity    number of ring slots, rounded up to a power of two (default 8192)
+*           xserver.log_policy      drop or block when the ring is full (default drop)
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+
+public class XserverAccessLog
+{
+    static String ACCESS_LOG = System.getProperty("xserver.access_log", "-");
+    static int LOG_CAPACITY = Integer.getInteger("xserver.log_capacity", 8192);
+    static String LOG_POLICY = System.getProperty("xserver.log_policy", "drop");
+    static final int BATCH = 256;
+
+    static XserverAccessLog log; // shared by all processors, null when disabled
+
+    Slot[] slots;
+    int mask;
+    boolean block;
+    AtomicLong tail = new AtomicLong();  // next sequence to claim
+    volatile long head = 0;               // next sequence the writer consumes
+    LongAdder dropped = new LongAdder();
+    OutputStream out;
+    Thread writer;
+    volatile boolean parked = false;      // the writer waits for an unpark
+    volatile boolean running = true;
+
+    public XserverAccessLog(OutputStream out, int capacity, boolean block)
+    {
+        this.out = out;
+        this.block = block;
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        slots = new Slot[size];
+        for (int i = 0; i < size; i++)
+            slots[i] = new Slot();
+        mask = size - 1;
+
+        writer = new Thread(this::write, "xserver-access-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // open the configured log, called once by the server
+    static void open()
+    {
+        if (ACCESS_LOG.equals("none"))
+            return;
+        OutputStream out = null;
+        try
+        {
+            if (ACCESS_LOG.equals("-"))
+                out = new FileOutputStream(FileDescriptor.out); // not System.out, its lock is what we avoid
+            else
+                out = new FileOutputStream(ACCESS_LOG, true);
+        } catch (IOException e) {
+            Xserver.error("Failed to open access log " + ACCESS_LOG, e.getMessage());
+        }
+        log = new XserverAccessLog(new BufferedOutputStream(out, 64 << 10), LOG_CAPACITY, LOG_POLICY.equals("block"));
+        XserverMetrics.gauge("xserver_access_log_dropped", () -> log.dropped.sum());
+    }
+
+    // write out what is still in the ring and stop the writer
+    static void close()
+    {
+        if (log == null)
+            return;
+        log.running = false;
+        LockSupport.unpark(log.writer);
+        try {
+            log.writer.join(1000);
+        } catch (InterruptedException ignored) {}
+    }
+
+    void log(String client, String method, String path, int status, long bytes, long duration_ns)
+    {
+        long seq;
+        while (true)
+        {
+            seq = tail.get();
+            if (seq - head >= slots.length) // full
+            {
+                if (!block)
+                {
+                    dropped.increment();
+                    return;
+                }
+                LockSupport.parkNanos(10000);
+                continue;
+            }
+            if (tail.compareAndSet(seq, seq + 1))
+                break;
+        }
+
+        Slot slot = slots[(int) (seq & mask)];
+        slot.time = System.currentTimeMillis();
+        slot.client = client;
+        slot.method = method;
+        slot.path = path;
+        slot.status = status;
+        slot.bytes = bytes;
+        slot.duration_ns = duration_ns;
+        slot.seq = seq; // publish
+        if (parked) // after the publish, the writer looks at the ring again after it sets the flag
+            LockSupport.unpark(writer);
+    }
+
+    //
+    // WRITER
+    //
+
+    void write()
+    {
+        StringBuilder line = new StringBuilder(256);
+        long next = 0;
+        int batch = 0;
+        while (true)
+        {
+            Slot slot = slots[(int) (next & mask)];
+            if (slot.seq != next) // nothing published yet
+            {
+                if (batch > 0)
+                {
+                    flush();
+                    batch = 0;
+                }
+                if (!running && tail.get() == next)
+                    break;
+                parked = true;
+                // an entry published before the flag was set would not unpark us, so look once more
+                if (slot.seq != next && running)
+                    LockSupport.park(this);
+                parked = false;
+                continue;
+            }
+
+            line.setLength(0);
+            line.append(Instant.ofEpochMilli(slot.time)).append(' ')
+                .append(slot.client).append(' ')
+                .append(slot.method).append(' ')
+                .append(slot.path).append(' ')
+                .append(slot.status).append(' ')
+                .append(slot.bytes).append(' ')
+                .append(slot.duration_ns / 1000).append("us\n");
+            slot.client = slot.method = slot.path = null;
+            head = ++next; // the slot is free again
+
+            try {
+                out.write(line.toString().getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                Xserver.debug("Failed to write access log: " + e.getMessage());
+            }
+            if (++batch == BATCH)
+            {
+                flush();
+                batch = 0;
+            }
+        }
+    }
+
+    void flush()
+    {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            Xserver.debug("Failed to flush access log: " + e.getMessage());
+        }
+    }
+
+    static class Slot
+    {
+        volatile long seq = -1;
+        long time;
+        String client;
+        String method;
+        String path;
+        int status;
+        long bytes;
+        long duration_ns;
+    }
+}
@@ -0,0 +1,414 @@
+/*
+*       XServerBench - Load generator for comparing the XServer modes
+*
+*       Every client opens one keep-alive connection and sends its requests one after another,
+*       optionally pausing between them to imitate a slow client. All clients start at once,
+*       so a server that cannot hold all of them concurrently shows it in the latency percentiles.
+*
+*       Usage:
+*           java XserverBench  <host, String>  <port, Int>  <path, String>  <clients, Int>  <requests per client, Int>
+*                              (<think time between requests in ms, Int, default 0>)
+*
+*       Comparing the pool with the virtual thread mode under the same load, e.g.:
+*           java Xserver 8080 /var/www 8 pool        java XserverBench localhost 8080 /a.txt 200 5 100
+*           java Xserver 8080 /var/www 8 virtual     java XserverBench localhost 8080 /a.txt 200 5 100
+*
+*       Compression, the same load without and with Accept-Encoding: gzip, reporting the bytes on the wire:
+*           java XserverBench  gzip  <host, String>  <port, Int>  <path, String>  <clients, Int>  <requests per client, Int>
+*
+*       Micro benchmarks of single server components, run in process:
+*           java XserverBench  parse  <iterations, Int>
+*               request heads parsed per second, readLine + regex (as before) against XserverRequestParser
+*           java XserverBench  head  <iterations, Int>
+*               response heads encoded per second and bytes allocated per head, String building and
+*               PrintStream.print (as before) against the pre-encoded XserverHead
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+public class XserverBench
+{
+    int timeout = 60000;
+
+    String host;
+    int port;
+    String path;
+    int think_time;
+    String headers;     // extra request header lines
+
+    long[][] latencies;
+    AtomicInteger errors = new AtomicInteger();
+    AtomicLong bytes_received = new AtomicLong();
+
+    public XserverBench(String host, int port, String path, int clients, int requests, int think_time)
+    {
+        this(host, port, path, clients, requests, think_time, "");
+    }
+
+    public XserverBench(String host, int port, String path, int clients, int requests, int think_time, String headers)
+    {
+        this.headers = headers;
+        this.host = host;
+        this.port = port;
+        this.path = path;
+        this.think_time = think_time;
+        latencies = new long[clients][];
+
+        // the clients themselves must not be limited by a thread pool
+        ExecutorService executor = Xserver.newVirtualExecutor();
+        CountDownLatch done = new CountDownLatch(clients);
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++)
+        {
+            final int client = i;
+            executor.execute(() -> {
+                latencies[client] = runClient(requests);
+                done.countDown();
+            });
+        }
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            error("Benchmark interrupted", e.getMessage());
+        }
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+
+        report(elapsed);
+    }
+
+    // one keep-alive connection, returns the latency of every completed request in ns
+    long[] runClient(int requests)
+    {
+        long[] times = new long[requests];
+        int completed = 0;
+        byte[] request = ("GET " + path + " HTTP/1.1\r\nHost: " + host + ":" + port + "\r\n" + headers + "\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1);
+
+        try (Socket socket = new Socket())
+        {
+            socket.connect(new InetSocketAddress(host, port), timeout);
+            socket.setSoTimeout(timeout);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+
+            for (; completed < requests; completed++)
+            {
+                long sent = System.nanoTime();
+                out.write(request);
+                out.flush();
+                if (!readResponse(in))
+                    break;
+                times[completed] = System.nanoTime() - sent;
+                if (think_time > 0)
+                    sleep(think_time);
+            }
+        } catch (IOException e) {
+            // counted below
+        }
+
+        if (completed < requests)
+            errors.addAndGet(requests - completed);
+        return Arrays.copyOf(times, completed);
+    }
+
+    // read one response, the body is framed by Content-Length
+    boolean readResponse(InputStream in) throws IOException
+    {
+        int content_length = 0;
+        while (true)
+        {
+            String line = readLine(in);
+            if (line == null) // connection closed mid-header
+                return false;
+            bytes_received.addAndGet(line.length() + 2);
+            if (line.isEmpty())
+                break;
+            if (line.regionMatches(true, 0, "Content-Length:", 0, 15))
+                content_length = Integer.parseInt(line.substring(15).trim());
+        }
+
+        in.skipNBytes(content_length);
+        bytes_received.addAndGet(content_length);
+        return true;
+    }
+
+    static String readLine(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != '\n')
+        {
+            if (c == -1)
+                return null;
+            if (c != '\r')
+                line.write(c);
+        }
+        return line.toString(StandardCharsets.ISO_8859_1);
+    }
+
+    void report(long elapsed)
+    {
+        int total = 0;
+        for (long[] times : latencies)
+            total += times.length;
+        long[] all = new long[total];
+        int pos = 0;
+        for (long[] times : latencies)
+        {
+            System.arraycopy(times, 0, all, pos, times.length);
+            pos += times.length;
+        }
+        Arrays.sort(all);
+
+        double seconds = elapsed / 1e9;
+        System.out.println("Requests:   " + total + " ok, " + errors.get() + " failed");
+        System.out.println("Bytes:      " + bytes_received.get() + " (heads and bodies)");
+        System.out.printf("Elapsed:    %.2f s%n", seconds);
+        System.out.printf("Throughput: %.1f req/s%n", total / seconds);
+        System.out.printf("Latency:    p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                percentile(all, 0.50), percentile(all, 0.99), percentile(all, 1.0));
+    }
+
+    static double percentile(long[] sorted, double p)
+    {
+        if (sorted.length == 0)
+            return 0;
+        int i = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(i, 0)] / 1e6;
+    }
+
+    public static void main(String[] args)
+    {
+        if (args.length == 2 && args[0].equals("parse"))
+        {
+            benchParse(Integer.parseInt(args[1]));
+            return;
+        }
+        if (args.length == 2 && args[0].equals("head"))
+        {
+            benchHead(Integer.parseInt(args[1]));
+            return;
+        }
+        if (args.length == 6 && args[0].equals("gzip"))
+        {
+            try
+            {
+                for (String headers : new String[] {"", "Accept-Encoding: gzip\r\n"})
+                {
+                    System.out.println(headers.isEmpty() ? "Uncompressed:" : "Compressed (gzip):");
+                    new XserverBench(args[1], Integer.parseInt(args[2]), args[3],
+                            Integer.parseInt(args[4]), Integer.parseInt(args[5]), 0, headers);
+                }
+            } catch (NumberFormatException e) {
+                error("Invalid argument", e.getMessage());
+            }
+            return;
+        }
+        if (args.length < 5 || args.length > 6)
+            error("Invalid number (" + args.length + ") of arguments given");
+        try
+        {
+            int think_time = args.length == 6 ? Integer.parseInt(args[5]) : 0;
+            new XserverBench(args[0], Integer.parseInt(args[1]), args[2],
+                    Integer.parseInt(args[3]), Integer.parseInt(args[4]), think_time);
+        } catch (NumberFormatException e) {
+            error("Invalid argument", e.getMessage());
+        }
+    }
+
+    //
+    // MICRO BENCHMARKS
+    //
+
+    static final byte[] SAMPLE_REQUEST = ("GET /images/logo.png HTTP/1.1\r\n" +
+            "Host: www.example.com\r\n" +
+            "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0\r\n" +
+            "Accept: image/avif,image/webp,*/*\r\n" +
+            "Accept-Language: en-US,en;q=0.5\r\n" +
+            "Accept-Encoding: gzip, deflate\r\n" +
+            "Connection: keep-alive\r\n" +
+            "Referer: http://www.example.com/index.html\r\n" +
+            "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    static void benchParse(int iterations)
+    {
+        // warm up both, then measure
+        for (int round = 0; round < 2; round++)
+        {
+            long start = System.nanoTime();
+            int ok = 0;
+            for (int i = 0; i < iterations; i++)
+                ok += parseLegacy(SAMPLE_REQUEST) ? 1 : 0;
+            long legacy = System.nanoTime() - start;
+
+            XserverRequestParser parser = new XserverRequestParser();
+            ByteBuffer buf = ByteBuffer.wrap(SAMPLE_REQUEST);
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+            {
+                buf.clear();
+                if (parser.parse(buf) == XserverRequestParser.COMPLETE && parser.methodIs("GET")
+                        && parser.versionIs("HTTP/1.1") && parser.field("Host") != -1
+                        && parser.field("Connection") != -1)
+                    ok++;
+                parser.consume(buf);
+            }
+            long parsed = System.nanoTime() - start;
+
+            if (round == 1)
+            {
+                System.out.println("Parsed:     " + ok + " of " + 2 * iterations);
+                System.out.printf("readLine + regex:      %.0f req/s%n", iterations / (legacy / 1e9));
+                System.out.printf("XserverRequestParser:  %.0f req/s%n", iterations / (parsed / 1e9));
+            }
+        }
+    }
+
+    static void benchHead(int iterations)
+    {
+        XserverFile file = null;
+        try
+        {
+            Path path = Files.createTempFile("xserver-bench", ".html");
+            file = new XserverFile(path, Files.readAttributes(path, BasicFileAttributes.class));
+            Files.delete(path);
+        } catch (IOException e) {
+            error("Failed to create a sample file", e.getMessage());
+        }
+        XserverProcessor processor = new XserverProcessor(System.getProperty("java.io.tmpdir"));
+        processor.file_info = file;
+        processor.content_type = file.content_type;
+        processor.content_length = 48213;
+
+        // both write into a buffered stream, as the processor's writer does
+        PrintStream out = new PrintStream(new BufferedOutputStream(OutputStream.nullOutputStream(), 8192));
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        for (int round = 0; round < 2; round++)
+        {
+            long allocated = threads.getCurrentThreadAllocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                out.print(headLegacy(file, processor.content_length));
+            long legacy = System.nanoTime() - start;
+            long legacy_bytes = threads.getCurrentThreadAllocatedBytes() - allocated;
+
+            allocated = threads.getCurrentThreadAllocatedBytes();
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+            {
+                processor.encodeHead(200, true);
+                out.write(processor.head.buf, 0, processor.head.length);
+            }
+            long encoded = System.nanoTime() - start;
+            long encoded_bytes = threads.getCurrentThreadAllocatedBytes() - allocated;
+
+            if (round == 1)
+            {
+                System.out.printf("String + PrintStream.print:  %.0f heads/s, %d bytes allocated per head%n",
+                        iterations / (legacy / 1e9), legacy_bytes / iterations);
+                System.out.printf("XserverHead:                 %.0f heads/s, %d bytes allocated per head%n",
+                        iterations / (encoded / 1e9), encoded_bytes / iterations);
+            }
+        }
+    }
+
+    // how XserverProcessor built a 200 file head before XserverHead (Date formatted per head)
+    static String headLegacy(XserverFile file, long content_length)
+    {
+        String head = "";
+        head += "HTTP/1.1 200 OK\r\n";
+        head += "Date: " + XserverFile.HTTP_DATE.format(java.time.Instant.now()) + "\r\n";
+        head += "ETag: " + file.etag + "\r\n" + "Last-Modified: " + file.last_modified + "\r\n";
+        head += "Vary: Accept-Encoding\r\n";
+        head += "Accept-Ranges: bytes\r\n";
+        head += "Content-Type: " + file.content_type + "\r\n";
+        head += "Content-Length: " + content_length + "\r\n";
+        head += "\r\n";
+        return head;
+    }
+
+    // what XserverProcessor did before it had a parser
+    static boolean parseLegacy(byte[] request)
+    {
+        List<String> req_header = new ArrayList<>();
+        try
+        {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(request)));
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                req_header.add(line + "\r\n");
+                if (line.equals(""))
+                    break;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+
+        Matcher m = Pattern.compile("(GET) (/[^ ]*) (HTTP/1.1)$").matcher(req_header.get(0));
+        if (!m.find())
+            return false;
+        String path = m.group(2);
+        m = Pattern.compile("^(Host:).+").matcher(req_header.get(1));
+        return m.find() && !path.isEmpty();
+    }
+
+    //
+    // MACROS
+    //
+
+    // sleep in ms
+    static void sleep(int milliseconds)
+    {
+        try {
+            TimeUnit.MILLISECONDS.sleep(milliseconds);
+        } catch (InterruptedException ignored) {}
+    }
+
+    // methods for handling errors, because I'm lazy to type it out each time
+    static void error(String err_msg)
+    {
+        System.err.println("Error: " + err_msg);
+        System.exit(1);
+    }
+
+    // overriding for the case of caught exception
+    static void error(String err_msg, String excep_msg)
+    {
+        System.err.println("Error: " + err_msg);
+        System.err.println("This error was caused by the following exception:");
+        System.err.println(excep_msg);
+        System.exit(1);
+    }
+}
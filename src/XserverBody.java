@@ -0,0 +1,31 @@
+/*
+*       XServerBody - Streaming response bodies of XServer
+*
+*       Architecture:
+*       * interface XserverBody is a response body that is produced while it is sent, its length is not
+*           known up front - the processor sends it with Transfer-Encoding: chunked, see XserverChunkedOutput
+*           it is produced part by part, so an event loop makes the next part only once the socket took the last
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+interface XserverBody
+{
+    // the next part of the body, false once the body is complete
+    boolean writeNext(OutputStream out) throws IOException;
+
+    // a body that is not produced to its end lets go of what it holds
+    default void close() {}
+
+    default void writeTo(OutputStream out) throws IOException
+    {
+        try {
+            while (writeNext(out))
+                ;
+        } finally {
+            close();
+        }
+    }
+}
@@ -0,0 +1,19 @@
+/*
+*       XServerBucket - Per client state of XserverLimiter
+*
+*       Architecture:
+*       * class XserverBucket is the state of one client: its open connections and a token bucket
+*           the bucket is kept as a single time (the GCRA form of a token bucket), taking a token is one CAS
+*           an evicted bucket is marked with a negative connection count, so a racing accept never counts
+*           a connection on an entry that is no longer in the map
+ */
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+class XserverBucket
+{
+    AtomicInteger connections = new AtomicInteger();
+    AtomicLong due = new AtomicLong(System.nanoTime()); // when the bucket is full again, in System.nanoTime()
+}
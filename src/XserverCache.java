@@ -0,0 +1,276 @@
+/*
+*       XServerCache - Shared in-memory cache of complete responses
+*
+*       Architecture:
+*       * class XserverCache maps a resolved file path to its fully encoded response (head + body)
+*           together with the file's metadata, so conditional requests are answered from the cache too
+*           other representations of a file (the gzip variant) are entries of their own, keyed "path\0variant"
+*           it is bounded by the total number of cached bytes and evicts the least recently used entries
+*           the map is split into segments, each an access ordered LinkedHashMap behind its own lock,
+*           so concurrent hits on different files do not contend
+*           an entry can be at most a segment's share of the bytes, a larger one would evict its whole segment
+*       * a WatchService thread watches the root directory tree and drops entries of changed files,
+*           hits therefore need no file system access at all
+*
+*       Configuration (system properties):
+*           xserver.cache_bytes     total size of the cache in bytes, 0 disables it (default 32 MB)
+*           xserver.cache_entry     largest response that is cached in bytes (default 256 kB),
+*                                   at most xserver.cache_bytes / 16
+ */
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+
+public class XserverCache
+{
+    static long CACHE_BYTES = Long.getLong("xserver.cache_bytes", 32L << 20);
+    static int CACHE_ENTRY = Integer.getInteger("xserver.cache_entry", 256 << 10);
+    static final int SEGMENTS = 16;
+
+    Segment[] segments;
+    int max_entry;
+    AtomicLong stamp = new AtomicLong(); // bumped by every invalidation
+    WatchService watcher;
+    Thread watch_thread;
+
+    public XserverCache(String root, long max_bytes, int max_entry)
+    {
+        // every entry must fit its segment, or each put would empty the segment to make room for it
+        this.max_entry = (int) Math.min(max_entry, max_bytes / SEGMENTS);
+        if (this.max_entry < max_entry)
+            System.err.println("Warning: cache entries limited to " + this.max_entry + " bytes, a segment's share of "
+                    + max_bytes);
+        segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment(max_bytes / SEGMENTS);
+
+        try
+        {
+            watcher = FileSystems.getDefault().newWatchService();
+            registerTree(Paths.get(root).toAbsolutePath().normalize()); // as the index resolves it
+        } catch (IOException e) {
+            Xserver.error("Failed to watch root directory " + root, e.getMessage());
+        }
+        watch_thread = new Thread(this::watch, "xserver-cache-watch");
+        watch_thread.setDaemon(true);
+        watch_thread.start();
+    }
+
+    // the configured cache for the given root, null when caching is disabled
+    static XserverCache open(String root)
+    {
+        if (CACHE_BYTES <= 0)
+            return null;
+        return new XserverCache(root, CACHE_BYTES, CACHE_ENTRY);
+    }
+
+    // cache key of a file, the same path from the request and from the watcher must give the same key,
+    // so it is absolute whether the root was given relative or the path comes from the index
+    static String key(String path)
+    {
+        return Paths.get(path).toAbsolutePath().normalize().toString();
+    }
+
+    Entry get(String key)
+    {
+        return segment(key).get(key);
+    }
+
+    // a put is dropped if anything was invalidated since the caller took its stamp, the response may be stale
+    void put(String key, XserverFile file, byte[] response, long since)
+    {
+        if (response.length > max_entry)
+            return;
+        Segment segment = segment(key);
+        synchronized (segment)
+        {
+            if (stamp.get() == since)
+                segment.put(key, new Entry(file, response));
+        }
+    }
+
+    long stamp()
+    {
+        return stamp.get();
+    }
+
+    // drop the file with its variants and, if it was a directory, everything below it
+    void invalidate(String key)
+    {
+        stamp.incrementAndGet();
+        for (Segment segment : segments)
+            segment.removeTree(key);
+    }
+
+    void clear()
+    {
+        stamp.incrementAndGet();
+        for (Segment segment : segments)
+            segment.clear();
+    }
+
+    void close()
+    {
+        try {
+            watcher.close();
+        } catch (IOException ignored) {}
+    }
+
+    Segment segment(String key)
+    {
+        return segments[(key.hashCode() & 0x7fffffff) % SEGMENTS];
+    }
+
+    //
+    // WATCHER
+    //
+
+    void registerTree(Path dir) throws IOException
+    {
+        try (Stream<Path> dirs = Files.walk(dir))
+        {
+            Iterator<Path> it = dirs.filter(Files::isDirectory).iterator();
+            while (it.hasNext())
+                it.next().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+    }
+
+    void watch()
+    {
+        while (true)
+        {
+            WatchKey key;
+            try
+            {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                break; // cache closed
+            }
+
+            Path dir = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents())
+            {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                {
+                    clear(); // events were lost, nothing can be trusted
+                    continue;
+                }
+                Path changed = dir.resolve((Path) event.context());
+                invalidate(key(changed.toString()));
+                if (changed.toString().endsWith(".gz")) // the compressed variant of the file may come from it
+                    invalidate(key(changed.toString().replaceAll("\\.gz$", "")));
+                debug("Cache invalidated: " + changed);
+
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed))
+                    try {
+                        registerTree(changed);
+                    } catch (IOException e) {
+                        debug("Failed to watch " + changed + ": " + e.getMessage());
+                    }
+            }
+            key.reset();
+        }
+    }
+
+    //
+    // MACROS
+    //
+
+    // debug method
+    static void debug(String msg)
+    {
+        if (Xserver.DEBUG)
+            System.out.println(msg);
+    }
+
+    // a cached response and the metadata of the file version it was made from
+    static class Entry
+    {
+        XserverFile file;
+        byte[] response;
+
+        Entry(XserverFile file, byte[] response)
+        {
+            this.file = file;
+            this.response = response;
+        }
+    }
+
+    // one lock and one LRU order per segment
+    static class Segment extends LinkedHashMap<String, Entry>
+    {
+        private static final long serialVersionUID = 1L;
+
+        long max_bytes;
+        long bytes = 0;
+
+        Segment(long max_bytes)
+        {
+            super(64, 0.75f, true);
+            this.max_bytes = max_bytes;
+        }
+
+        @Override
+        public synchronized Entry get(Object key)
+        {
+            return super.get(key);
+        }
+
+        @Override
+        public synchronized Entry put(String key, Entry entry)
+        {
+            Entry old = super.put(key, entry);
+            if (old != null)
+                bytes -= old.response.length;
+            bytes += entry.response.length;
+
+            // evict from the least recently used end until we fit again
+            Iterator<Map.Entry<String, Entry>> it = entrySet().iterator();
+            while (bytes > max_bytes && it.hasNext())
+            {
+                bytes -= it.next().getValue().response.length;
+                it.remove();
+            }
+            return old;
+        }
+
+        // the key itself, its variants ("key\0...") and the tree below it ("key/...")
+        synchronized void removeTree(String key)
+        {
+            Iterator<Map.Entry<String, Entry>> it = entrySet().iterator();
+            while (it.hasNext())
+            {
+                Map.Entry<String, Entry> entry = it.next();
+                String k = entry.getKey();
+                if (k.startsWith(key) && (k.length() == key.length() || k.charAt(key.length()) == '/'
+                        || k.charAt(key.length()) == '\0'))
+                {
+                    bytes -= entry.getValue().response.length;
+                    it.remove();
+                }
+            }
+        }
+
+        @Override
+        public synchronized void clear()
+        {
+            super.clear();
+            bytes = 0;
+        }
+    }
+}
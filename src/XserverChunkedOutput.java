@@ -0,0 +1,93 @@
+/*
+*       XServerChunkedOutput - Chunked transfer coding of XServer
+*
+*       Architecture:
+*       * class XserverChunkedOutput is the stream a streamed response body (XserverBody) writes to
+*           it collects the data in a reusable buffer that has room for the chunk size line in front
+*           and the CRLF behind, so every full buffer goes out as one chunk in a single write
+*           the first chunk leaves as soon as it is full, the time to first byte does not depend on the body size
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+class XserverChunkedOutput extends OutputStream
+{
+    static final int CHUNK = 8192;
+    static final int SIZE_LINE = 6;    // up to 4 hex digits and CRLF
+    static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+    static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    OutputStream out;
+    byte[] buf = new byte[SIZE_LINE + CHUNK + 2];
+    int count = 0;      // data bytes in buf
+    long written = 0;   // bytes passed to out, framing included
+
+    // reused for every streamed response of a connection
+    XserverChunkedOutput reset(OutputStream out)
+    {
+        this.out = out;
+        count = 0;
+        written = 0;
+        return this;
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        if (count == CHUNK)
+            emit();
+        buf[SIZE_LINE + count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        while (len > 0)
+        {
+            int n = Math.min(len, CHUNK - count);
+            System.arraycopy(b, off, buf, SIZE_LINE + count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == CHUNK)
+                emit();
+        }
+    }
+
+    // send what is buffered as a chunk now
+    @Override
+    public void flush() throws IOException
+    {
+        emit();
+        out.flush();
+    }
+
+    // the last chunk, the body is complete - the underlying stream stays open
+    void finish() throws IOException
+    {
+        emit();
+        out.write(LAST_CHUNK, 0, LAST_CHUNK.length);
+        written += LAST_CHUNK.length;
+    }
+
+    void emit() throws IOException
+    {
+        if (count == 0) // an empty chunk would end the body
+            return;
+        // size line right before the data: hex digits, CRLF
+        int start = SIZE_LINE - 2;
+        buf[start] = '\r';
+        buf[start + 1] = '\n';
+        for (int size = count; size > 0; size >>>= 4)
+            buf[--start] = HEX[size & 0xf];
+        buf[SIZE_LINE + count] = '\r';
+        buf[SIZE_LINE + count + 1] = '\n';
+
+        int length = SIZE_LINE - start + count + 2;
+        out.write(buf, start, length);
+        written += length;
+        count = 0;
+    }
+}
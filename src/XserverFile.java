@@ -0,0 +1,72 @@
+/*
+*       XServerFile - File metadata of XServer
+*
+*       Architecture:
+*       * class XserverFile is the metadata of one file: size, modification time, content type and the
+*           validators of conditional requests (ETag, Last-Modified), computed once per version of the file
+*           it is kept by XserverIndex and XserverCache, so a hit needs no file system access
+*           without the index, of() keeps the metadata of the files served lately in a memo: a request still
+*           reads the attributes, but the ETag and the HTTP date are only made when the path, mtime or size changes
+ */
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+class XserverFile
+{
+    static final DateTimeFormatter HTTP_DATE =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+    static final int MEMO_MAX = 4096; // files, the memo starts over when it is full
+
+    static final ConcurrentHashMap<Path, XserverFile> memo = new ConcurrentHashMap<>();
+
+    Path path;
+    long size;
+    long mtime;             // ms since the epoch
+    String content_type;
+    String etag;
+    String gzip_etag;       // of the gzip encoded variant
+    String last_modified;   // HTTP date
+
+    public XserverFile(Path path, BasicFileAttributes attributes)
+    {
+        this.path = path;
+        size = attributes.size();
+        mtime = attributes.lastModifiedTime().toMillis();
+        content_type = XserverIndex.contentType(path.getFileName().toString());
+        etag = "\"" + Long.toHexString(mtime) + "-" + Long.toHexString(size) + "\"";
+        gzip_etag = etag.substring(0, etag.length() - 1) + "-gz\"";
+        last_modified = HTTP_DATE.format(Instant.ofEpochMilli(mtime));
+    }
+
+    // the metadata of path, made anew only when the file changed since it was last asked for
+    static XserverFile of(Path path, BasicFileAttributes attributes)
+    {
+        XserverFile file = memo.get(path);
+        if (file != null && file.mtime == attributes.lastModifiedTime().toMillis() && file.size == attributes.size())
+            return file;
+        if (memo.size() >= MEMO_MAX)
+            memo.clear();
+        file = new XserverFile(path, attributes);
+        memo.put(path, file);
+        return file;
+    }
+
+    // ms since the epoch of an HTTP date, -1 if it is not one
+    static long parseDate(String date)
+    {
+        try {
+            return ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+}
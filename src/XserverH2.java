@@ -0,0 +1,983 @@
+/*
+*       XServerH2 - HTTP/2 over cleartext TCP (h2c) for XServer
+*
+*       Architecture:
+*       * class XserverH2 serves one HTTP/2 connection (RFC 7540), the client starts it either with the connection
+*           preface right away (prior knowledge) or with an HTTP/1.1 request carrying Upgrade: h2c,
+*           which is answered with 101 and then becomes stream 1
+*           the connection's thread reads the frames, every request is rendered by the connection's XserverProcessor
+*           as soon as its headers are complete, so GET/304/206/404/429 work the same as over HTTP/1.1,
+*           and the HTTP/1.1 head of the response is translated to HPACK encoded HTTP/2 headers
+*           a writer task sends the frames: control frames and response headers first, in the order they
+*           were produced (the HPACK state depends on it), then the bodies of all open streams in turn,
+*           one DATA frame each, so a large file does not hold back the small ones requested after it
+*           the writer is started when there is something to send and ends when nothing more can be sent,
+*           an idle connection or one waiting for a window holds only the thread of its reader
+*           flow control: the writer sends no more than the client's connection and stream windows allow,
+*           the client's own DATA (there should be none, only GET is served) is acknowledged right away
+*       * the writers, and the readers of connections the event loop engine hands over (see XserverNio), run on
+*           the server's virtual thread executor in virtual mode, otherwise on a pool of reused daemon threads
+*           the open connections count against xserver.h2_connections, over it an Upgrade is answered
+*           as HTTP/1.1 and a connection preface is refused
+*       * class XserverH2Stream is a response being sent: its send window and the body left to send
+*           (buffers and file regions, as queued by the event loop engine), a streamed body is made a part
+*           at a time by the writer, once the stream has sent what it had
+*       * a connection error is thrown as an XserverH2Error, the connection is closed with GOAWAY and its code
+*
+*       Configuration (system properties):
+*           xserver.h2              accept h2c, with prior knowledge or by Upgrade (default true)
+*           xserver.h2_streams      most concurrent streams per connection (default 100)
+*           xserver.h2_connections  most open HTTP/2 connections (default 256)
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
+
+
+public class XserverH2
+{
+    static boolean H2 = !System.getProperty("xserver.h2", "true").equals("false");
+    static int H2_STREAMS = Integer.getInteger("xserver.h2_streams", 100);
+    static int H2_CONNECTIONS = Integer.getInteger("xserver.h2_connections", 256);
+
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    static final byte[] SWITCHING_PROTOCOLS =
+            "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    static final int FRAME_SIZE = 16384;    // largest frame sent and accepted, the protocol default
+    static final int WINDOW = 65535;        // initial flow control window, the protocol default
+    static final int MAX_BLOCK = 65536;     // largest request header block
+
+    // frame types
+    static final int DATA = 0x0;
+    static final int HEADERS = 0x1;
+    static final int PRIORITY = 0x2;
+    static final int RST_STREAM = 0x3;
+    static final int SETTINGS = 0x4;
+    static final int PUSH_PROMISE = 0x5;
+    static final int PING = 0x6;
+    static final int GOAWAY = 0x7;
+    static final int WINDOW_UPDATE = 0x8;
+    static final int CONTINUATION = 0x9;
+
+    // frame flags
+    static final int END_STREAM = 0x1;
+    static final int ACK = 0x1;
+    static final int END_HEADERS = 0x4;
+    static final int PADDED = 0x8;
+    static final int PRIORITY_FLAG = 0x20;
+
+    // error codes
+    static final int NO_ERROR = 0x0;
+    static final int PROTOCOL_ERROR = 0x1;
+    static final int FLOW_CONTROL_ERROR = 0x3;
+    static final int FRAME_SIZE_ERROR = 0x6;
+    static final int REFUSED_STREAM = 0x7;
+    static final int COMPRESSION_ERROR = 0x9;
+
+    static final AtomicInteger connections = new AtomicInteger(); // open HTTP/2 connections, see admit()
+    static final AtomicInteger thread_cnt = new AtomicInteger();
+    static ExecutorService executor;    // writers, and readers handed over by the event loop engine
+
+    XserverProcessor processor;
+    InputStream in;
+    OutputStream out;
+    XserverHpack decoder = new XserverHpack(false);
+    XserverHpack encoder = new XserverHpack(true);
+    byte[] head = new byte[9];              // header of the frame being read
+    byte[] frame = new byte[FRAME_SIZE];    // and its payload
+    byte[] block = new byte[FRAME_SIZE];    // request header block being collected from HEADERS and CONTINUATION
+    int block_length;
+    int block_stream = 0;                   // stream of that block, 0 between blocks
+    ByteBuffer request;                     // the HTTP/1.1 form of the current request, for the processor
+    int last_stream = 0;                    // highest stream opened by the client
+    byte[] data = new byte[9 + FRAME_SIZE]; // DATA frame being sent by the writer
+
+    // shared with the writer, guarded by this
+    ArrayDeque<byte[]> control = new ArrayDeque<>();            // frames to send before any more DATA
+    ArrayDeque<XserverH2Stream> ready = new ArrayDeque<>();     // streams with body left, in turn
+    HashMap<Integer, XserverH2Stream> streams = new HashMap<>(); // streams with body left, by id
+    long window = WINDOW;               // connection send window
+    long initial_window = WINDOW;       // send window of new streams, the client's SETTINGS_INITIAL_WINDOW_SIZE
+    boolean writing = false;            // a writer is running
+    boolean failed = false;             // a write failed, no writer is started any more
+    boolean aborted = false;            // connection error, nothing but control frames are sent any more
+
+    public XserverH2(XserverProcessor processor, InputStream in, OutputStream out, byte[] rest)
+    {
+        this.processor = processor;
+        // what the HTTP/1.1 reader already has of the connection comes first
+        // the sequence closes a stream it has read to the end, which must not close the socket
+        InputStream socket_in = new FilterInputStream(in)
+        {
+            @Override
+            public void close() {}
+        };
+        this.in = new BufferedInputStream(new SequenceInputStream(new ByteArrayInputStream(rest), socket_in), FRAME_SIZE);
+        this.out = new BufferedOutputStream(out, 2 * FRAME_SIZE);
+    }
+
+    // set up the threads of the connections and count them on /__metrics, called once by the server
+    // with its virtual thread executor, or null to use a pool of its own
+    static void open(ExecutorService threads)
+    {
+        if (!H2)
+            return;
+        executor = threads != null ? threads : Executors.newCachedThreadPool(task ->
+        {
+            Thread thread = new Thread(task, "xserver-h2-" + thread_cnt.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        XserverMetrics.gauge("xserver_h2_connections", connections::get);
+    }
+
+    // take a slot for a new connection, false when xserver.h2_connections are open - serve() gives it back
+    static boolean admit()
+    {
+        while (true)
+        {
+            int open = connections.get();
+            if (open >= H2_CONNECTIONS)
+                return false;
+            if (connections.compareAndSet(open, open + 1))
+                return true;
+        }
+    }
+
+    // the request just parsed starts HTTP/2: the first line of the preface, or an h2c upgrade
+    static boolean starts(XserverRequestParser parser)
+    {
+        return preface(parser) || upgrade(parser) != null;
+    }
+
+    static boolean preface(XserverRequestParser parser)
+    {
+        return parser.methodIs("PRI") && parser.versionIs("HTTP/2.0") && parser.path().equals("*");
+    }
+
+    // the HTTP2-Settings of an Upgrade: h2c request, null if it is not one
+    static byte[] upgrade(XserverRequestParser parser)
+    {
+        int upgrade = parser.field("Upgrade");
+        int settings = parser.field("HTTP2-Settings");
+        if (upgrade == -1 || settings == -1 || !parser.methodIs("GET"))
+            return null;
+        boolean h2c = false;
+        for (String protocol : parser.value(upgrade).split(","))
+            h2c |= protocol.trim().equalsIgnoreCase("h2c");
+        if (!h2c)
+            return null;
+        try
+        {
+            byte[] payload = Base64.getUrlDecoder().decode(parser.value(settings).trim());
+            return payload.length % 6 == 0 ? payload : null;
+        } catch (IllegalArgumentException e) {
+            return null; // not a valid upgrade, served as HTTP/1.1
+        }
+    }
+
+    // the bytes of the buffer after the request just parsed
+    static byte[] rest(ByteBuffer buf, XserverRequestParser parser)
+    {
+        return Arrays.copyOfRange(buf.array(), parser.end, buf.arrayOffset() + buf.limit());
+    }
+
+    // serve the connection until it is closed, the request the processor just parsed started it
+    // the connection was admitted by the caller
+    void serve()
+    {
+        byte[] settings = upgrade(processor.parser);
+        try
+        {
+            if (settings != null)
+                out.write(SWITCHING_PROTOCOLS);
+            queue(frame(SETTINGS, 0, 0, new byte[] {0, 3, (byte) (H2_STREAMS >>> 24), (byte) (H2_STREAMS >>> 16),
+                    (byte) (H2_STREAMS >>> 8), (byte) H2_STREAMS}));
+            if (settings != null)
+            {
+                // the upgrade request is stream 1, its settings count as the client's first SETTINGS
+                applySettings(settings, settings.length);
+                last_stream = 1;
+                respond(1, processor.parse_status);
+                preface(0);
+            }
+            else
+                preface(18); // the first line was read as an HTTP/1.1 request
+            readFrames();
+            goaway(NO_ERROR);
+        } catch (XserverH2Error e) {
+            debug("HTTP/2 connection error " + e.code + ": " + e.getMessage());
+            synchronized (this)
+            {
+                aborted = true;
+            }
+            goaway(e.code);
+        } catch (SocketTimeoutException e) {
+            debug("Idle timeout");
+            goaway(NO_ERROR);
+        } catch (IOException e) {
+            debug("HTTP/2 connection failed: " + e.getMessage());
+        }
+        finish();
+        connections.decrementAndGet();
+    }
+
+    // the rest of the client's connection preface, skip bytes of it were already read
+    void preface(int skip) throws IOException
+    {
+        byte[] rest = new byte[PREFACE.length - skip];
+        if (!read(rest, rest.length, true) || !Arrays.equals(rest, 0, rest.length, PREFACE, skip, PREFACE.length))
+            throw new XserverH2Error(PROTOCOL_ERROR, "Invalid connection preface");
+    }
+
+    //
+    // READER
+    //
+
+    // until the client closes the connection or goes away, or the server drains
+    void readFrames() throws IOException
+    {
+        while (true)
+        {
+            // between frames with no response left to send the connection is idle, drainIdle() closes its input
+            processor.idle = openStreams() == 0 && in.available() == 0;
+            if (processor.idle && XserverProcessor.draining)
+                return;
+            boolean more = read(head, 9, true);
+            processor.idle = false;
+            if (!more)
+                return;
+
+            int length = (head[0] & 0xff) << 16 | (head[1] & 0xff) << 8 | (head[2] & 0xff);
+            int type = head[3] & 0xff;
+            int flags = head[4] & 0xff;
+            int stream = (head[5] & 0x7f) << 24 | (head[6] & 0xff) << 16 | (head[7] & 0xff) << 8 | (head[8] & 0xff);
+            if (length > FRAME_SIZE)
+                throw new XserverH2Error(FRAME_SIZE_ERROR, "Frame of " + length + " bytes");
+            read(frame, length, false);
+            if (block_stream != 0 && type != CONTINUATION)
+                throw new XserverH2Error(PROTOCOL_ERROR, "Header block interrupted");
+
+            switch (type)
+            {
+                case DATA:
+                    onData(stream, flags, length);
+                    break;
+                case HEADERS:
+                    onHeaders(stream, flags, length);
+                    break;
+                case PRIORITY:
+                    if (stream == 0 || length != 5)
+                        throw new XserverH2Error(PROTOCOL_ERROR, "Invalid PRIORITY");
+                    break; // every stream gets its turn anyway
+                case RST_STREAM:
+                    if (stream == 0 || length != 4)
+                        throw new XserverH2Error(PROTOCOL_ERROR, "Invalid RST_STREAM");
+                    cancel(stream);
+                    break;
+                case SETTINGS:
+                    if (stream != 0 || length % 6 != 0 || ((flags & ACK) != 0 && length != 0))
+                        throw new XserverH2Error(FRAME_SIZE_ERROR, "Invalid SETTINGS");
+                    if ((flags & ACK) == 0)
+                    {
+                        applySettings(frame, length);
+                        queue(frame(SETTINGS, ACK, 0, new byte[0]));
+                    }
+                    break;
+                case PING:
+                    if (stream != 0 || length != 8)
+                        throw new XserverH2Error(FRAME_SIZE_ERROR, "Invalid PING");
+                    if ((flags & ACK) == 0)
+                        queue(frame(PING, ACK, 0, Arrays.copyOf(frame, 8)));
+                    break;
+                case GOAWAY:
+                    return; // no new streams, the open ones are still sent
+                case WINDOW_UPDATE:
+                    if (length != 4)
+                        throw new XserverH2Error(FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE");
+                    windowUpdate(stream, integer(frame, 0) & 0x7fffffff);
+                    break;
+                case CONTINUATION:
+                    // only inside a header block, stream 0 is no block
+                    if (block_stream == 0 || stream != block_stream)
+                        throw new XserverH2Error(PROTOCOL_ERROR, "Unexpected CONTINUATION");
+                    appendBlock(0, length);
+                    if ((flags & END_HEADERS) != 0)
+                        endHeaders();
+                    break;
+                case PUSH_PROMISE:
+                    throw new XserverH2Error(PROTOCOL_ERROR, "PUSH_PROMISE from a client");
+                default:
+                    break; // unknown frame types are ignored
+            }
+        }
+    }
+
+    // read exactly length bytes, false if the connection ended before a frame
+    boolean read(byte[] b, int length, boolean frame_start) throws IOException
+    {
+        int n = 0;
+        while (n < length)
+        {
+            int r;
+            try {
+                r = in.read(b, n, length - n);
+            } catch (SocketTimeoutException e) {
+                if (n == 0 && frame_start && openStreams() == 0)
+                    throw e; // idle for the idle timeout
+                continue;
+            }
+            if (r == -1)
+            {
+                if (n == 0 && frame_start)
+                    return false;
+                throw new EOFException("Connection closed in the middle of a frame");
+            }
+            n += r;
+        }
+        return true;
+    }
+
+    void onData(int stream, int flags, int length) throws IOException
+    {
+        if (stream == 0 || stream > last_stream)
+            throw new XserverH2Error(PROTOCOL_ERROR, "DATA on stream " + stream);
+        // request bodies are not used, the client gets its window back at once
+        if (length > 0)
+        {
+            queue(frame(WINDOW_UPDATE, 0, 0, bytes(length)));
+            if ((flags & END_STREAM) == 0)
+                queue(frame(WINDOW_UPDATE, 0, stream, bytes(length)));
+        }
+    }
+
+    void onHeaders(int stream, int flags, int length) throws IOException
+    {
+        if (stream == 0 || stream % 2 == 0 || stream <= last_stream)
+            throw new XserverH2Error(PROTOCOL_ERROR, "HEADERS on stream " + stream);
+        int offset = 0;
+        int padding = 0;
+        if ((flags & PADDED) != 0)
+        {
+            if (length < 1)
+                throw new XserverH2Error(FRAME_SIZE_ERROR, "Invalid HEADERS");
+            padding = frame[0] & 0xff;
+            offset = 1;
+        }
+        if ((flags & PRIORITY_FLAG) != 0)
+            offset += 5;
+        if (offset + padding > length)
+            throw new XserverH2Error(PROTOCOL_ERROR, "Invalid HEADERS padding");
+
+        block_stream = stream;
+        block_length = 0;
+        appendBlock(offset, length - padding - offset);
+        if ((flags & END_HEADERS) != 0)
+            endHeaders();
+    }
+
+    void appendBlock(int offset, int length) throws XserverH2Error
+    {
+        if (block_length + length > MAX_BLOCK)
+            throw new XserverH2Error(PROTOCOL_ERROR, "Header block too large");
+        if (block_length + length > block.length)
+            block = Arrays.copyOf(block, MAX_BLOCK);
+        System.arraycopy(frame, offset, block, block_length, length);
+        block_length += length;
+    }
+
+    // a complete request header block, the request is answered right away
+    void endHeaders() throws IOException
+    {
+        int stream = block_stream;
+        block_stream = 0;
+        last_stream = stream;
+        List<String[]> headers = decoder.decode(block, block_length); // also when refused, keeps the table in sync
+        if (openStreams() >= H2_STREAMS)
+        {
+            queue(frame(RST_STREAM, 0, stream, bytes(REFUSED_STREAM)));
+            return;
+        }
+        int status = request(headers);
+        if (status == -1)
+        {
+            queue(frame(RST_STREAM, 0, stream, bytes(PROTOCOL_ERROR)));
+            return;
+        }
+        respond(stream, status);
+        processor.parser.consume(request);
+    }
+
+    // the request as HTTP/1.1 for the processor's parser, returns the parse status, -1 if it is malformed
+    int request(List<String[]> headers)
+    {
+        String method = null, path = null, scheme = null, authority = null;
+        StringBuilder fields = new StringBuilder(256);
+        boolean regular = false;
+        boolean host = false;
+        for (String[] field : headers)
+        {
+            String name = field[0], value = field[1];
+            if (!valid(name, value))
+                return -1;
+            if (name.startsWith(":"))
+            {
+                if (regular) // pseudo-headers come first
+                    return -1;
+                switch (name)
+                {
+                    case ":method": method = method == null ? value : ""; break;
+                    case ":path": path = path == null ? value : ""; break;
+                    case ":scheme": scheme = scheme == null ? value : ""; break;
+                    case ":authority": authority = authority == null ? value : ""; break;
+                    default: return -1;
+                }
+                continue;
+            }
+            regular = true;
+            switch (name)
+            {
+                case "connection": case "keep-alive": case "proxy-connection": case "transfer-encoding": case "upgrade":
+                    return -1; // connection specific, not allowed in HTTP/2
+                case "te":
+                    if (!value.equals("trailers"))
+                        return -1;
+                    break;
+                case "host":
+                    host = true;
+                    break;
+            }
+            fields.append(name).append(": ").append(value).append("\r\n");
+        }
+        if (method == null || path == null || scheme == null || method.isEmpty() || path.isEmpty() || scheme.isEmpty()
+                || method.indexOf(' ') >= 0 || path.indexOf(' ') >= 0)
+            return -1;
+
+        StringBuilder head = new StringBuilder(fields.length() + 64);
+        head.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+        if (!host && authority != null)
+            head.append("Host: ").append(authority).append("\r\n");
+        head.append(fields).append("\r\n");
+        request = ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        return processor.parse(request);
+    }
+
+    // lowercase name, no line breaks anywhere
+    static boolean valid(String name, String value)
+    {
+        if (name.isEmpty())
+            return false;
+        for (int i = 0; i < name.length(); i++)
+        {
+            char c = name.charAt(i);
+            if ((c >= 'A' && c <= 'Z') || c <= ' ' || c == 0x7f)
+                return false;
+        }
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if (c == '\r' || c == '\n' || c == 0)
+                return false;
+        }
+        return true;
+    }
+
+    // render the response with the processor and queue its headers and body
+    void respond(int id, int status) throws IOException
+    {
+        ByteBuffer[] response = processor.respond(status);
+
+        // the HTTP/1.1 head as HTTP/2 headers, without the connection specific ones
+        // a cached response comes in parts, its head goes on from one part to the next
+        encoder.begin();
+        encoder.header(":status", new String(response[0].array(), 9, 3, StandardCharsets.ISO_8859_1));
+        XserverH2Stream stream = new XserverH2Stream(id);
+        int i = XserverHead.statusEnd(response[0].array());
+        boolean in_body = false;
+        for (int p = 0; p < response.length; p++)
+        {
+            ByteBuffer part = response[p];
+            if (!in_body)
+            {
+                i = headers(part.array(), p == 0 ? i : part.position(), part.limit());
+                if (i == part.limit())
+                    continue;
+                in_body = true;
+                part.position(i + 2); // past the blank line
+            }
+            if (part.hasRemaining())
+                stream.add(new XserverNioWrite(part));
+        }
+        long[] ranges = processor.ranges;
+        if (processor.file_channel != null && ranges == null)
+            stream.add(new XserverNioWrite(processor.file_channel, 0, processor.content_length, true));
+        else if (processor.file_channel != null)
+        {
+            for (int r = 0; r < ranges.length; r += 2)
+            {
+                if (ranges.length > 2)
+                    stream.add(XserverNioWrite.ascii(processor.partHead(r)));
+                stream.add(new XserverNioWrite(processor.file_channel, ranges[r], ranges[r + 1], r == ranges.length - 2));
+            }
+            if (ranges.length > 2)
+                stream.add(XserverNioWrite.ascii(XserverProcessor.multipartEnd()));
+        }
+        processor.file_channel = null;
+        if (processor.stream_body != null)
+        {
+            // HTTP/2 frames the body itself, the writer makes it a part at a time and records it once complete
+            stream.producer = processor.stream_body;
+            stream.record = processor.deferRecord();
+            processor.stream_body = null;
+        }
+
+        byte[] frames = headerFrames(id, stream.done());
+        synchronized (this)
+        {
+            control.add(frames);
+            if (!stream.done())
+            {
+                stream.window = initial_window;
+                streams.put(id, stream);
+                ready.add(stream);
+            }
+            wake();
+        }
+    }
+
+    // encode the header lines of b from i, up to the blank line or end - returns where it stopped
+    int headers(byte[] b, int i, int end)
+    {
+        while (i < end && b[i] != '\r')
+        {
+            int colon = i;
+            while (b[colon] != ':')
+                colon++;
+            int line_end = colon;
+            while (b[line_end] != '\r')
+                line_end++;
+            String name = new String(b, i, colon - i, StandardCharsets.ISO_8859_1).toLowerCase(Locale.ROOT);
+            if (!name.equals("connection") && !name.equals("transfer-encoding") && !name.equals("keep-alive"))
+                encoder.header(name, new String(b, colon + 2, line_end - colon - 2, StandardCharsets.ISO_8859_1));
+            i = line_end + 2;
+        }
+        return i;
+    }
+
+    // the encoded header block as HEADERS and, if it does not fit one frame, CONTINUATION frames
+    byte[] headerFrames(int stream, boolean end_stream)
+    {
+        int length = encoder.length;
+        int frame_cnt = Math.max((length + FRAME_SIZE - 1) / FRAME_SIZE, 1);
+        byte[] frames = new byte[length + 9 * frame_cnt];
+        for (int f = 0, offset = 0; f < frame_cnt; f++, offset += FRAME_SIZE)
+        {
+            int n = Math.min(FRAME_SIZE, length - offset);
+            int flags = (f == frame_cnt - 1 ? END_HEADERS : 0) | (f == 0 && end_stream ? END_STREAM : 0);
+            frameHead(frames, f * (9 + FRAME_SIZE), n, f == 0 ? HEADERS : CONTINUATION, flags, stream);
+            System.arraycopy(encoder.out, offset, frames, f * (9 + FRAME_SIZE) + 9, n);
+        }
+        return frames;
+    }
+
+    void applySettings(byte[] payload, int length) throws XserverH2Error
+    {
+        for (int i = 0; i < length; i += 6)
+        {
+            int id = (payload[i] & 0xff) << 8 | (payload[i + 1] & 0xff);
+            long value = integer(payload, i + 2) & 0xffffffffL;
+            switch (id)
+            {
+                case 0x1: // SETTINGS_HEADER_TABLE_SIZE
+                    encoder.maxSize((int) Math.min(value, Integer.MAX_VALUE));
+                    break;
+                case 0x2: // SETTINGS_ENABLE_PUSH, we never push
+                    if (value > 1)
+                        throw new XserverH2Error(PROTOCOL_ERROR, "Invalid SETTINGS_ENABLE_PUSH");
+                    break;
+                case 0x4: // SETTINGS_INITIAL_WINDOW_SIZE, applies to the open streams too
+                    if (value > Integer.MAX_VALUE)
+                        throw new XserverH2Error(FLOW_CONTROL_ERROR, "Invalid SETTINGS_INITIAL_WINDOW_SIZE");
+                    synchronized (this)
+                    {
+                        for (XserverH2Stream stream : streams.values())
+                            stream.window += value - initial_window;
+                        initial_window = value;
+                        wake();
+                    }
+                    break;
+                case 0x5: // SETTINGS_MAX_FRAME_SIZE, we stay at the default
+                    if (value < FRAME_SIZE || value > 0xffffff)
+                        throw new XserverH2Error(PROTOCOL_ERROR, "Invalid SETTINGS_MAX_FRAME_SIZE");
+                    break;
+                default:
+                    break; // concurrent streams and header list size do not limit responses, unknown ones are ignored
+            }
+        }
+    }
+
+    synchronized void windowUpdate(int stream, int increment) throws XserverH2Error
+    {
+        if (increment == 0)
+            throw new XserverH2Error(PROTOCOL_ERROR, "WINDOW_UPDATE of 0");
+        if (stream == 0)
+        {
+            window += increment;
+            if (window > Integer.MAX_VALUE)
+                throw new XserverH2Error(FLOW_CONTROL_ERROR, "Connection window overflow");
+        }
+        else
+        {
+            XserverH2Stream s = streams.get(stream);
+            if (s == null) // done already
+                return;
+            s.window += increment;
+            if (s.window > Integer.MAX_VALUE)
+                throw new XserverH2Error(FLOW_CONTROL_ERROR, "Stream window overflow");
+        }
+        wake();
+    }
+
+    // the client reset the stream, the rest of its body is not sent
+    synchronized void cancel(int id)
+    {
+        XserverH2Stream stream = streams.remove(id);
+        if (stream == null)
+            return;
+        stream.cancelled = true;
+        if (ready.remove(stream)) // otherwise the writer has it and releases it
+            stream.release();
+    }
+
+    synchronized int openStreams()
+    {
+        return streams.size();
+    }
+
+    synchronized void queue(byte[] frame)
+    {
+        control.add(frame);
+        wake();
+    }
+
+    // there may be something to send, start the writer unless it runs already - the caller holds the lock
+    void wake()
+    {
+        if (writing || failed)
+            return;
+        writing = true;
+        executor.execute(this::write);
+    }
+
+    void goaway(int code)
+    {
+        byte[] payload = new byte[8];
+        System.arraycopy(bytes(last_stream), 0, payload, 0, 4);
+        System.arraycopy(bytes(code), 0, payload, 4, 4);
+        queue(frame(GOAWAY, 0, 0, payload));
+    }
+
+    // let the writer send what it can, then release what is left
+    void finish()
+    {
+        try
+        {
+            synchronized (this)
+            {
+                long deadline = System.currentTimeMillis() + XserverProcessor.IDLE_TIMEOUT;
+                for (long left = XserverProcessor.IDLE_TIMEOUT; writing && left > 0; left = deadline - System.currentTimeMillis())
+                    wait(left);
+                if (writing) // the client does not take its responses
+                {
+                    aborted = true;
+                    Xserver.closeQuietly(processor.socket);
+                    while (writing)
+                        wait();
+                }
+            }
+        } catch (InterruptedException ignored) {}
+        synchronized (this)
+        {
+            for (XserverH2Stream stream : streams.values())
+                stream.release();
+            streams.clear();
+            ready.clear();
+        }
+    }
+
+    //
+    // WRITER
+    //
+
+    // send until nothing more can be sent, started by wake()
+    void write()
+    {
+        boolean flushed = true;
+        boolean stopped = false;
+        try
+        {
+            while (true)
+            {
+                byte[] next_frame;
+                XserverH2Stream stream = null;
+                synchronized (this)
+                {
+                    next_frame = control.poll();
+                    if (next_frame == null)
+                        stream = next();
+                    if (next_frame == null && stream == null && flushed)
+                    {
+                        // nothing the windows allow, a WINDOW_UPDATE or the next response wakes a new writer
+                        writing = false;
+                        stopped = true;
+                        notifyAll();
+                        return;
+                    }
+                }
+
+                if (next_frame != null)
+                {
+                    out.write(next_frame);
+                    flushed = false;
+                    continue;
+                }
+                if (stream == null) // flush outside the lock
+                {
+                    out.flush();
+                    flushed = true;
+                    continue;
+                }
+
+                // one DATA frame of the stream, then it is the next one's turn
+                if (stream.remaining == 0) // a streamed body that sent what it had
+                    stream.produce();
+                int n;
+                synchronized (this)
+                {
+                    n = (int) Math.max(Math.min(Math.min(FRAME_SIZE, window), Math.min(stream.window, stream.remaining)), 0);
+                    window -= n;
+                    stream.window -= n;
+                }
+                int got = stream.read(data, 9, n);
+                boolean end = stream.done();
+                if (got > 0 || end)
+                {
+                    frameHead(data, 0, got, DATA, end ? END_STREAM : 0, stream.id);
+                    out.write(data, 0, 9 + got);
+                    flushed = false;
+                }
+                synchronized (this)
+                {
+                    if (end || stream.cancelled)
+                    {
+                        streams.remove(stream.id, stream);
+                        stream.release();
+                        if (streams.isEmpty() && XserverProcessor.draining)
+                            processor.socket.shutdownInput(); // the reader sees the end and the connection closes
+                    }
+                    else
+                        ready.add(stream);
+                }
+            }
+        } catch (IOException e) {
+            debug("Failed to write HTTP/2 frames: " + e.getMessage());
+            Xserver.closeQuietly(processor.socket); // the reader fails too
+            synchronized (this)
+            {
+                failed = true;
+            }
+        } finally {
+            if (!stopped)
+                synchronized (this)
+                {
+                    writing = false;
+                    notifyAll();
+                }
+        }
+    }
+
+    // the first stream in turn that its window and the connection's allow to send, taken out of the rotation
+    XserverH2Stream next()
+    {
+        if (window <= 0 || aborted)
+            return null;
+        for (Iterator<XserverH2Stream> it = ready.iterator(); it.hasNext(); )
+        {
+            XserverH2Stream stream = it.next();
+            if (stream.window > 0)
+            {
+                it.remove();
+                return stream;
+            }
+        }
+        return null;
+    }
+
+    //
+    // FRAMES
+    //
+
+    static byte[] frame(int type, int flags, int stream, byte[] payload)
+    {
+        byte[] frame = new byte[9 + payload.length];
+        frameHead(frame, 0, payload.length, type, flags, stream);
+        System.arraycopy(payload, 0, frame, 9, payload.length);
+        return frame;
+    }
+
+    static void frameHead(byte[] buf, int offset, int length, int type, int flags, int stream)
+    {
+        buf[offset] = (byte) (length >>> 16);
+        buf[offset + 1] = (byte) (length >>> 8);
+        buf[offset + 2] = (byte) length;
+        buf[offset + 3] = (byte) type;
+        buf[offset + 4] = (byte) flags;
+        buf[offset + 5] = (byte) (stream >>> 24);
+        buf[offset + 6] = (byte) (stream >>> 16);
+        buf[offset + 7] = (byte) (stream >>> 8);
+        buf[offset + 8] = (byte) stream;
+    }
+
+    static byte[] bytes(int value)
+    {
+        return new byte[] {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+    static int integer(byte[] buf, int offset)
+    {
+        return (buf[offset] & 0xff) << 24 | (buf[offset + 1] & 0xff) << 16 | (buf[offset + 2] & 0xff) << 8
+                | (buf[offset + 3] & 0xff);
+    }
+
+    //
+    // MACROS
+    //
+
+    // debug method
+    static void debug(String msg)
+    {
+        if (Xserver.DEBUG)
+            System.out.println(msg);
+    }
+}
+
+
+class XserverH2Stream
+{
+    int id;
+    long window;        // send window, guarded by the connection
+    long remaining = 0; // body bytes not sent yet, of a streamed body those made so far
+    ArrayDeque<XserverNioWrite> body = new ArrayDeque<>();
+    boolean cancelled = false;
+    XserverBody producer;       // a streamed body, null when there is none or it is complete
+    LongConsumer record;        // records the response once the streamed body is complete
+    long produced = 0;
+    Part part;
+
+    public XserverH2Stream(int id)
+    {
+        this.id = id;
+    }
+
+    void add(XserverNioWrite part)
+    {
+        body.add(part);
+        remaining += part.remaining();
+    }
+
+    // the next length bytes of the body (fewer only if a file shrunk, the body then ends early)
+    int read(byte[] dst, int offset, int length) throws IOException
+    {
+        int n = 0;
+        while (n < length && !body.isEmpty())
+        {
+            int r = body.peek().read(dst, offset + n, length - n);
+            if (r <= 0)
+            {
+                body.poll().release();
+                continue;
+            }
+            n += r;
+        }
+        remaining = body.isEmpty() ? 0 : remaining - n;
+        return n;
+    }
+
+    // everything of the body is sent, a streamed body to its end
+    boolean done()
+    {
+        return remaining == 0 && producer == null;
+    }
+
+    // the next part of the streamed body, made by the writer once the stream sent what it had
+    void produce()
+    {
+        if (producer == null)
+            return;
+        if (part == null)
+            part = new Part();
+        boolean more = true;
+        try {
+            while (more && part.size() == 0)
+                more = producer.writeNext(part);
+        } catch (IOException e) {
+            XserverH2.debug("Failed to stream body: " + e.getMessage());
+            more = false; // the body is cut short
+        }
+        produced += part.size();
+        if (part.size() > 0)
+            add(new XserverNioWrite(part.take()));
+        if (!more)
+            endBody();
+    }
+
+    void endBody()
+    {
+        producer.close();
+        producer = null;
+        record.accept(produced);
+    }
+
+    void release()
+    {
+        for (XserverNioWrite part : body)
+            part.release();
+        body.clear();
+        if (producer != null)
+            endBody();
+    }
+
+    // the parts of a streamed body, one buffer reused by all of them
+    static class Part extends ByteArrayOutputStream
+    {
+        // what was written since the last take, the buffer is written again once that is sent
+        ByteBuffer take()
+        {
+            ByteBuffer taken = ByteBuffer.wrap(buf, 0, count);
+            reset();
+            return taken;
+        }
+    }
+}
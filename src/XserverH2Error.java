@@ -0,0 +1,23 @@
+/*
+*       XServerH2Error - HTTP/2 connection errors of XServer
+*
+*       Architecture:
+*       * class XserverH2Error is a connection error of XserverH2 or XserverHpack, the connection is closed
+*           with GOAWAY and its code
+ */
+
+import java.io.IOException;
+
+
+class XserverH2Error extends IOException
+{
+    private static final long serialVersionUID = 1L;
+
+    int code;
+
+    public XserverH2Error(int code, String message)
+    {
+        super(message);
+        this.code = code;
+    }
+}
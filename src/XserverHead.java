@@ -0,0 +1,197 @@
+/*
+*       XServerHead - Pre-encoded response heads of XServer
+*
+*       Architecture:
+*       * class XserverHead is a reusable byte buffer a processor assembles its response heads in
+*           status lines and the fixed header lines are encoded once, as byte arrays, and only copied
+*           variable values (lengths, ETags, ...) are written digit by digit and char by char,
+*           so a head costs no String building, no charset encoding and no allocation
+*       * the Date header is formatted once per second by a ticker thread and shared by all responses
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+
+public class XserverHead
+{
+    static final byte[] STATUS_200 = ascii("HTTP/1.1 200 OK\r\n");
+    static final byte[] STATUS_206 = ascii("HTTP/1.1 206 Partial Content\r\n");
+    static final byte[] STATUS_304 = ascii("HTTP/1.1 304 Not Modified\r\n");
+    static final byte[] STATUS_400 = ascii("HTTP/1.1 400 Bad Request\r\n");
+    static final byte[] STATUS_404 = ascii("HTTP/1.1 404 Not Found\r\n");
+    static final byte[] STATUS_416 = ascii("HTTP/1.1 416 Range Not Satisfiable\r\n");
+    static final byte[] STATUS_429 = ascii("HTTP/1.1 429 Too Many Requests\r\n");
+    static final byte[] STATUS_431 = ascii("HTTP/1.1 431 Request Header Fields Too Large\r\n");
+    static final byte[] STATUS_503 = ascii("HTTP/1.1 503 Service Unavailable\r\n");
+
+    static final byte[] CRLF = ascii("\r\n");
+    static final byte[] CONNECTION_CLOSE = ascii("Connection: close\r\n");
+    static final byte[] ACCEPT_RANGES = ascii("Accept-Ranges: bytes\r\n");
+    static final byte[] VARY_ENCODING = ascii("Vary: Accept-Encoding\r\n");
+    static final byte[] ENCODING_GZIP = ascii("Content-Encoding: gzip\r\n");
+    static final byte[] ETAG = ascii("ETag: ");
+    static final byte[] LAST_MODIFIED = ascii("Last-Modified: ");
+    static final byte[] CONTENT_TYPE = ascii("Content-Type: ");
+    static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    static final byte[] CONTENT_RANGE = ascii("Content-Range: bytes ");
+    static final byte[] RETRY_AFTER = ascii("Retry-After: ");
+    static final byte[] CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+
+    // "Date: ...\r\n" of the current second
+    static volatile byte[] date = dateLine();
+    static Thread ticker;
+
+    static
+    {
+        ticker = new Thread(XserverHead::tick, "xserver-date");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    byte[] buf = new byte[512];
+    int length;
+
+    XserverHead reset()
+    {
+        length = 0;
+        return this;
+    }
+
+    XserverHead put(byte[] bytes)
+    {
+        return put(bytes, 0, bytes.length);
+    }
+
+    XserverHead put(byte[] bytes, int offset, int count)
+    {
+        ensure(count);
+        System.arraycopy(bytes, offset, buf, length, count);
+        length += count;
+        return this;
+    }
+
+    // header values are ASCII, the chars are stored as they are
+    XserverHead put(String s)
+    {
+        int n = s.length();
+        ensure(n);
+        for (int i = 0; i < n; i++)
+            buf[length++] = (byte) s.charAt(i);
+        return this;
+    }
+
+    XserverHead put(char c)
+    {
+        ensure(1);
+        buf[length++] = (byte) c;
+        return this;
+    }
+
+    XserverHead put(long value)
+    {
+        if (value < 0)
+        {
+            put('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10)
+            digits++;
+        ensure(digits);
+        for (int i = length + digits - 1; i >= length; i--)
+        {
+            buf[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+        return this;
+    }
+
+    // a whole header line, name: value CRLF
+    XserverHead line(byte[] name, String value)
+    {
+        return put(name).put(value).put(CRLF);
+    }
+
+    XserverHead line(byte[] name, long value)
+    {
+        return put(name).put(value).put(CRLF);
+    }
+
+    void ensure(int count)
+    {
+        if (length + count > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(2 * buf.length, length + count));
+    }
+
+    // the head copied out, followed by the given body
+    byte[] toArray(byte[] body)
+    {
+        int body_length = body == null ? 0 : body.length;
+        byte[] response = Arrays.copyOf(buf, length + body_length);
+        if (body != null)
+            System.arraycopy(body, 0, response, length, body_length);
+        return response;
+    }
+
+    static byte[] status(int code)
+    {
+        switch (code)
+        {
+            case 200: return STATUS_200;
+            case 206: return STATUS_206;
+            case 304: return STATUS_304;
+            case 400: return STATUS_400;
+            case 404: return STATUS_404;
+            case 416: return STATUS_416;
+            case 429: return STATUS_429;
+            case 431: return STATUS_431;
+            case 503: return STATUS_503;
+            default: return ascii("HTTP/1.1 " + code + " Unknown\r\n");
+        }
+    }
+
+    // offset just past the status line of an encoded response
+    static int statusEnd(byte[] response)
+    {
+        int i = 0;
+        while (response[i] != '\n')
+            i++;
+        return i + 1;
+    }
+
+    //
+    // DATE TICKER
+    //
+
+    static byte[] dateLine()
+    {
+        return ascii("Date: " + XserverFile.HTTP_DATE.format(Instant.now()) + "\r\n");
+    }
+
+    // refresh the date just after every full second
+    static void tick()
+    {
+        while (true)
+        {
+            try {
+                TimeUnit.MILLISECONDS.sleep(1000 - System.currentTimeMillis() % 1000);
+            } catch (InterruptedException e) {
+                break;
+            }
+            date = dateLine();
+        }
+    }
+
+    //
+    // MACROS
+    //
+
+    static byte[] ascii(String s)
+    {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
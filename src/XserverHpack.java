@@ -0,0 +1,500 @@
+/*
+*       XServerHpack - HPACK header compression for the HTTP/2 engine of XServer
+*
+*       Architecture:
+*       * class XserverHpack is one direction of a connection's header compression (RFC 7541),
+*           an HTTP/2 connection has a decoder for the request headers and an encoder for the response headers,
+*           each with its own dynamic table
+*       * the decoder understands every representation, Huffman coded strings and table size updates
+*       * the encoder sends :status and the headers whose values repeat from response to response
+*           (content type, date, vary, ...) as table indices, values that change with every response
+*           (length, ETag, ...) as literals that are not indexed, strings are Huffman coded when that is shorter
+*       * the dynamic table is a ring of entries numbered by insertion, the encoder finds an entry by name and
+*           value in a hash map of insertion numbers, a lookup does not scan the table
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+
+
+public class XserverHpack
+{
+    static final int TABLE_SIZE = 4096; // SETTINGS_HEADER_TABLE_SIZE of both sides, the protocol default
+    static final int ENTRY_OVERHEAD = 32;
+
+    static final String[][] STATIC = {
+            {":authority", ""},
+            {":method", "GET"},
+            {":method", "POST"},
+            {":path", "/"},
+            {":path", "/index.html"},
+            {":scheme", "http"},
+            {":scheme", "https"},
+            {":status", "200"},
+            {":status", "204"},
+            {":status", "206"},
+            {":status", "304"},
+            {":status", "400"},
+            {":status", "404"},
+            {":status", "500"},
+            {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""},
+            {"accept-ranges", ""},
+            {"accept", ""},
+            {"access-control-allow-origin", ""},
+            {"age", ""},
+            {"allow", ""},
+            {"authorization", ""},
+            {"cache-control", ""},
+            {"content-disposition", ""},
+            {"content-encoding", ""},
+            {"content-language", ""},
+            {"content-length", ""},
+            {"content-location", ""},
+            {"content-range", ""},
+            {"content-type", ""},
+            {"cookie", ""},
+            {"date", ""},
+            {"etag", ""},
+            {"expect", ""},
+            {"expires", ""},
+            {"from", ""},
+            {"host", ""},
+            {"if-match", ""},
+            {"if-modified-since", ""},
+            {"if-none-match", ""},
+            {"if-range", ""},
+            {"if-unmodified-since", ""},
+            {"last-modified", ""},
+            {"link", ""},
+            {"location", ""},
+            {"max-forwards", ""},
+            {"proxy-authenticate", ""},
+            {"proxy-authorization", ""},
+            {"range", ""},
+            {"referer", ""},
+            {"refresh", ""},
+            {"retry-after", ""},
+            {"server", ""},
+            {"set-cookie", ""},
+            {"strict-transport-security", ""},
+            {"transfer-encoding", ""},
+            {"user-agent", ""},
+            {"vary", ""},
+            {"via", ""},
+            {"www-authenticate", ""}
+    };
+
+    // first static index of a name, and the static index of a name with its value
+    static final HashMap<String, Integer> STATIC_NAMES = new HashMap<>();
+    static final HashMap<String, Integer> STATIC_FIELDS = new HashMap<>();
+
+    // response headers whose values repeat, worth an entry in the dynamic table
+    static final Set<String> INDEXED = Set.of("content-type", "content-encoding", "date", "vary", "accept-ranges",
+            "retry-after");
+
+    // Huffman code of every octet and of EOS (256), right aligned, RFC 7541 Appendix B
+    static final int[] CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+            0x3fffffff
+    };
+    static final byte[] LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30
+    };
+
+    static final int EOS = 256;
+    static final int[] TREE = huffmanTree();
+
+    static
+    {
+        for (int i = STATIC.length; i > 0; i--)
+        {
+            STATIC_NAMES.put(STATIC[i - 1][0], i);
+            STATIC_FIELDS.put(STATIC[i - 1][0] + "\0" + STATIC[i - 1][1], i);
+        }
+    }
+
+    boolean encoder;
+    // dynamic table, the entry inserted as number n is at n % names.length
+    String[] names = new String[16];
+    String[] values = new String[16];
+    long inserted = 0;      // entries ever inserted
+    int count = 0;          // entries in the table, the newest inserted - 1 down to the oldest inserted - count
+    int size = 0;           // octets, name + value + 32 per entry
+    int max_size = TABLE_SIZE;
+
+    // encoder
+    HashMap<String, Long> fields = new HashMap<>();  // name + "\0" + value to its insertion number
+    int size_update = -1;   // table size to signal at the start of the next block
+    byte[] out = new byte[256];
+    int length;
+
+    // decoder
+    byte[] in;
+    int pos;
+    int limit;
+
+    public XserverHpack(boolean encoder)
+    {
+        this.encoder = encoder;
+    }
+
+    //
+    // DECODER
+    //
+
+    // the header fields of a block, name and value pairs in the order they were sent
+    List<String[]> decode(byte[] block, int block_length) throws XserverH2Error
+    {
+        in = block;
+        pos = 0;
+        limit = block_length;
+        ArrayList<String[]> headers = new ArrayList<>();
+        while (pos < limit)
+        {
+            int b = in[pos] & 0xff;
+            if ((b & 0x80) != 0) // indexed field
+                headers.add(field(integer(7)));
+            else if ((b & 0xc0) == 0x40) // literal with incremental indexing
+            {
+                String[] field = literal(6);
+                insert(field[0], field[1]);
+                headers.add(field);
+            }
+            else if ((b & 0xe0) == 0x20) // dynamic table size update, only ahead of the fields
+            {
+                int new_size = integer(5);
+                if (!headers.isEmpty() || new_size > TABLE_SIZE)
+                    throw new XserverH2Error(XserverH2.COMPRESSION_ERROR, "Invalid table size update");
+                resize(new_size);
+            }
+            else // literal without indexing or never indexed
+                headers.add(literal(4));
+        }
+        return headers;
+    }
+
+    String[] literal(int prefix) throws XserverH2Error
+    {
+        int index = integer(prefix);
+        String name = index == 0 ? string() : field(index)[0];
+        return new String[] {name, string()};
+    }
+
+    String[] field(int index) throws XserverH2Error
+    {
+        if (index >= 1 && index <= STATIC.length)
+            return STATIC[index - 1];
+        int i = index - STATIC.length - 1;
+        if (index < 1 || i >= count)
+            throw new XserverH2Error(XserverH2.COMPRESSION_ERROR, "Invalid table index " + index);
+        int slot = (int) ((inserted - 1 - i) % names.length);
+        return new String[] {names[slot], values[slot]};
+    }
+
+    int integer(int prefix) throws XserverH2Error
+    {
+        int mask = (1 << prefix) - 1;
+        int value = in[pos++] & mask;
+        if (value < mask)
+            return value;
+        for (int shift = 0; shift <= 21; shift += 7)
+        {
+            if (pos >= limit)
+                break;
+            int b = in[pos++] & 0xff;
+            value += (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new XserverH2Error(XserverH2.COMPRESSION_ERROR, "Invalid integer");
+    }
+
+    String string() throws XserverH2Error
+    {
+        if (pos >= limit)
+            throw new XserverH2Error(XserverH2.COMPRESSION_ERROR, "Missing string");
+        boolean huffman = (in[pos] & 0x80) != 0;
+        int string_length = integer(7);
+        if (string_length > limit - pos)
+            throw new XserverH2Error(XserverH2.COMPRESSION_ERROR, "String past the end of the block");
+        String s = huffman ? huffmanDecode(in, pos, string_length)
+                : new String(in, pos, string_length, StandardCharsets.ISO_8859_1);
+        pos += string_length;
+        return s;
+    }
+
+    //
+    // ENCODER
+    //
+
+    // start a new header block in out
+    void begin()
+    {
+        length = 0;
+        if (size_update >= 0)
+        {
+            integer(0x20, 5, size_update);
+            size_update = -1;
+        }
+    }
+
+    void header(String name, String value)
+    {
+        String key = name + "\0" + value;
+        Integer index = STATIC_FIELDS.get(key);
+        if (index != null)
+        {
+            integer(0x80, 7, index);
+            return;
+        }
+        Long seq = fields.get(key);
+        if (seq != null)
+        {
+            integer(0x80, 7, STATIC.length + 1 + (int) (inserted - 1 - seq));
+            return;
+        }
+
+        Integer name_index = STATIC_NAMES.get(name);
+        boolean indexed = INDEXED.contains(name);
+        integer(indexed ? 0x40 : 0x00, indexed ? 6 : 4, name_index == null ? 0 : name_index);
+        if (name_index == null)
+            string(name);
+        string(value);
+        if (indexed)
+            insert(name, value);
+    }
+
+    // the client's SETTINGS_HEADER_TABLE_SIZE, our table never grows past the default
+    void maxSize(int peer_size)
+    {
+        int new_size = Math.min(peer_size, TABLE_SIZE);
+        if (new_size == max_size)
+            return;
+        resize(new_size);
+        size_update = new_size;
+    }
+
+    void integer(int pattern, int prefix, int value)
+    {
+        int mask = (1 << prefix) - 1;
+        if (value < mask)
+        {
+            write(pattern | value);
+            return;
+        }
+        write(pattern | mask);
+        for (value -= mask; value >= 0x80; value >>>= 7)
+            write((value & 0x7f) | 0x80);
+        write(value);
+    }
+
+    void string(String s)
+    {
+        int huffman_length = huffmanLength(s);
+        if (huffman_length < s.length())
+        {
+            integer(0x80, 7, huffman_length);
+            huffmanEncode(s);
+            return;
+        }
+        integer(0x00, 7, s.length());
+        for (int i = 0; i < s.length(); i++)
+            write(s.charAt(i));
+    }
+
+    void write(int b)
+    {
+        if (length == out.length)
+            out = Arrays.copyOf(out, 2 * out.length);
+        out[length++] = (byte) b;
+    }
+
+    //
+    // DYNAMIC TABLE
+    //
+
+    void insert(String name, String value)
+    {
+        int entry = name.length() + value.length() + ENTRY_OVERHEAD;
+        evict(max_size - entry);
+        if (entry > max_size) // larger than the table, which is now empty
+            return;
+        if (count == names.length)
+            grow();
+        int slot = (int) (inserted % names.length);
+        names[slot] = name;
+        values[slot] = value;
+        if (encoder)
+            fields.put(name + "\0" + value, inserted);
+        inserted++;
+        count++;
+        size += entry;
+    }
+
+    void resize(int new_size)
+    {
+        max_size = new_size;
+        evict(new_size);
+    }
+
+    // drop the oldest entries until the table takes at most size_limit octets
+    void evict(int size_limit)
+    {
+        while (size > size_limit && count > 0)
+        {
+            long seq = inserted - count;
+            int slot = (int) (seq % names.length);
+            size -= names[slot].length() + values[slot].length() + ENTRY_OVERHEAD;
+            if (encoder)
+                fields.remove(names[slot] + "\0" + values[slot], seq);
+            names[slot] = values[slot] = null;
+            count--;
+        }
+    }
+
+    void grow()
+    {
+        String[] new_names = new String[2 * names.length];
+        String[] new_values = new String[2 * values.length];
+        for (long seq = inserted - count; seq < inserted; seq++)
+        {
+            new_names[(int) (seq % new_names.length)] = names[(int) (seq % names.length)];
+            new_values[(int) (seq % new_values.length)] = values[(int) (seq % values.length)];
+        }
+        names = new_names;
+        values = new_values;
+    }
+
+    //
+    // HUFFMAN CODE
+    //
+
+    // binary tree of the code, children of node n at 2n and 2n + 1, a leaf is stored as -(symbol + 1)
+    static int[] huffmanTree()
+    {
+        int[] tree = new int[2 * EOS];
+        int nodes = 1;
+        for (int symbol = 0; symbol <= EOS; symbol++)
+        {
+            int node = 0;
+            for (int bit = LENGTHS[symbol] - 1; bit > 0; bit--)
+            {
+                int child = 2 * node + ((CODES[symbol] >>> bit) & 1);
+                if (tree[child] == 0)
+                    tree[child] = nodes++;
+                node = tree[child];
+            }
+            tree[2 * node + (CODES[symbol] & 1)] = -symbol - 1;
+        }
+        return tree;
+    }
+
+    static String huffmanDecode(byte[] data, int offset, int data_length) throws XserverH2Error
+    {
+        StringBuilder s = new StringBuilder(data_length * 8 / 5);
+        int node = 0;
+        int depth = 0;          // bits of the symbol being decoded
+        boolean ones = true;    // so far all of them set, as the padding has to be
+        for (int i = offset; i < offset + data_length; i++)
+            for (int bit = 7; bit >= 0; bit--)
+            {
+                int b = (data[i] >>> bit) & 1;
+                int next = TREE[2 * node + b];
+                if (next >= 0)
+                {
+                    node = next;
+                    depth++;
+                    ones &= b == 1;
+                    continue;
+                }
+                if (next == -EOS - 1)
+                    throw new XserverH2Error(XserverH2.COMPRESSION_ERROR, "EOS in a Huffman string");
+                s.append((char) (-next - 1));
+                node = depth = 0;
+                ones = true;
+            }
+        if (depth >= 8 || !ones) // the padding is the most significant bits of EOS, shorter than an octet
+            throw new XserverH2Error(XserverH2.COMPRESSION_ERROR, "Invalid Huffman padding");
+        return s.toString();
+    }
+
+    static int huffmanLength(String s)
+    {
+        long bits = 0;
+        for (int i = 0; i < s.length(); i++)
+            bits += LENGTHS[s.charAt(i) & 0xff];
+        return (int) ((bits + 7) / 8);
+    }
+
+    void huffmanEncode(String s)
+    {
+        long bits = 0;  // pending bits, the lowest n of them
+        int n = 0;
+        for (int i = 0; i < s.length(); i++)
+        {
+            int c = s.charAt(i) & 0xff;
+            bits = (bits << LENGTHS[c]) | CODES[c];
+            n += LENGTHS[c];
+            while (n >= 8)
+            {
+                n -= 8;
+                write((int) (bits >>> n));
+            }
+        }
+        if (n > 0) // padded with the first bits of EOS, all ones
+            write((int) (bits << (8 - n)) | (0xff >>> n));
+    }
+}
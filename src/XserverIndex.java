@@ -0,0 +1,217 @@
+/*
+*       XServerIndex - Pre-built index of the document root
+*
+*       Architecture:
+*       * class XserverIndex maps every request path under the root ("/dir/file.txt") to the file's metadata
+*           the root is scanned once at startup, requests then resolve their path with one hash lookup,
+*           a missing file is a 404 from memory and only indexed files (all inside the root) can ever be served
+*           the map is immutable and replaced as a whole, lookups take no lock and always see a consistent index
+*       * a WatchService thread watches the root directory tree, each batch of changes is applied to a copy
+*           of the index which is then swapped in
+*       * the metadata of a file is an XserverFile, with the validators of conditional requests computed once
+*
+*       Configuration (system properties):
+*           xserver.index           scan the root at startup and resolve paths from the index (default false)
+ */
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.stream.Stream;
+
+
+public class XserverIndex
+{
+    static boolean INDEX = Boolean.getBoolean("xserver.index");
+
+    Path root;
+    volatile Map<String, XserverFile> files = Collections.emptyMap();
+    WatchService watcher;
+    Thread watch_thread;
+
+    public XserverIndex(String root)
+    {
+        this.root = Paths.get(root).toAbsolutePath().normalize();
+        try
+        {
+            watcher = FileSystems.getDefault().newWatchService();
+            HashMap<String, XserverFile> scanned = new HashMap<>();
+            scanTree(this.root, scanned, true);
+            files = Collections.unmodifiableMap(scanned);
+        } catch (IOException e) {
+            Xserver.error("Failed to index root directory " + root, e.getMessage());
+        }
+        debug("Indexed " + files.size() + " files");
+
+        watch_thread = new Thread(this::watch, "xserver-index-watch");
+        watch_thread.setDaemon(true);
+        watch_thread.start();
+    }
+
+    // the index of the given root, null when disabled
+    static XserverIndex open(String root)
+    {
+        if (!INDEX)
+            return null;
+        XserverIndex index = new XserverIndex(root);
+        XserverMetrics.gauge("xserver_index_files", () -> index.files.size());
+        return index;
+    }
+
+    // the file for a request path, null if there is none
+    XserverFile get(String key)
+    {
+        return files.get(key);
+    }
+
+    int size()
+    {
+        return files.size();
+    }
+
+    void close()
+    {
+        try {
+            watcher.close();
+        } catch (IOException ignored) {}
+    }
+
+    // canonical form of a request path, "." and ".." are resolved without ever leaving "/"
+    static String key(String request_path)
+    {
+        if (request_path.indexOf("/.") < 0 && request_path.indexOf("//") < 0 && request_path.indexOf('\\') < 0)
+            return request_path; // nothing to resolve, the common case
+        String key = Paths.get(request_path.replace('\\', '/')).normalize().toString();
+        return key.startsWith("/") ? key : null;
+    }
+
+    // content type from the file name extension
+    static String contentType(String name)
+    {
+        int dot = name.lastIndexOf('.');
+        switch (dot < 0 ? "" : name.substring(dot + 1).toLowerCase())
+        {
+            case "html": case "htm": return "text/html; charset=utf-8";
+            case "txt": return "text/plain; charset=utf-8";
+            case "css": return "text/css; charset=utf-8";
+            case "js": return "text/javascript; charset=utf-8";
+            case "json": return "application/json";
+            case "xml": return "application/xml";
+            case "svg": return "image/svg+xml";
+            case "png": return "image/png";
+            case "jpg": case "jpeg": return "image/jpeg";
+            case "gif": return "image/gif";
+            case "ico": return "image/x-icon";
+            case "pdf": return "application/pdf";
+            default: return "application/octet-stream";
+        }
+    }
+
+    //
+    // SCANNING
+    //
+
+    String keyOf(Path file)
+    {
+        return "/" + root.relativize(file).toString().replace('\\', '/');
+    }
+
+    // add every regular file below dir, watching the directories on the way if asked to
+    void scanTree(Path dir, Map<String, XserverFile> into, boolean watch) throws IOException
+    {
+        try (Stream<Path> paths = Files.walk(dir))
+        {
+            Iterator<Path> it = paths.iterator();
+            while (it.hasNext())
+            {
+                Path path = it.next();
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    continue; // gone while we walked
+                }
+                if (attributes.isDirectory() && watch)
+                    path.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                else if (attributes.isRegularFile())
+                    into.put(keyOf(path), new XserverFile(path, attributes));
+            }
+        }
+    }
+
+    //
+    // WATCHER
+    //
+
+    void watch()
+    {
+        while (true)
+        {
+            WatchKey key;
+            try
+            {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                break; // index closed
+            }
+
+            // one new index per batch of events
+            Path dir = (Path) key.watchable();
+            HashMap<String, XserverFile> next = new HashMap<>(files);
+            for (WatchEvent<?> event : key.pollEvents())
+            {
+                try
+                {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                    {
+                        // events were lost, start over
+                        next.clear();
+                        scanTree(root, next, false);
+                        continue;
+                    }
+                    Path changed = dir.resolve((Path) event.context());
+                    update(next, changed, event.kind() == StandardWatchEventKinds.ENTRY_CREATE);
+                    debug("Index updated: " + changed);
+                } catch (IOException e) {
+                    debug("Failed to index " + dir + ": " + e.getMessage());
+                }
+            }
+            files = Collections.unmodifiableMap(next);
+            key.reset();
+        }
+    }
+
+    // drop the path and everything below it, then add back what is there now
+    void update(Map<String, XserverFile> next, Path changed, boolean created) throws IOException
+    {
+        String key = keyOf(changed);
+        String prefix = key + "/";
+        next.keySet().removeIf(k -> k.equals(key) || k.startsWith(prefix));
+        if (Files.exists(changed))
+            scanTree(changed, next, created);
+    }
+
+    //
+    // MACROS
+    //
+
+    // debug method
+    static void debug(String msg)
+    {
+        if (Xserver.DEBUG)
+            System.out.println(msg);
+    }
+}
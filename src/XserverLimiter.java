@@ -0,0 +1,159 @@
+/*
+*       XServerLimiter - Per client limits of XServer
+*
+*       Architecture:
+*       * class XserverLimiter keeps one XserverBucket per remote address in a ConcurrentHashMap,
+*           lookups take no lock and updates only touch the entry of that client, never the whole map
+*           connections are counted when accepted, a client over its connection cap gets a 429 and is closed
+*           before it takes a queue slot or a worker, every request then takes a token from the client's bucket,
+*           without one it is answered with 429 and a Retry-After telling when the next token is due
+*           an eviction thread drops the entries of clients without connections whose bucket has refilled,
+*           so the map only holds the clients that are active or still paying for a burst
+*       * the state of one client is an XserverBucket: its open connections and a token bucket kept as
+*           a single time, see XserverBucket
+*
+*       Configuration (system properties):
+*           xserver.client_connections  most open connections per client address, 0 for no cap (default 0)
+*           xserver.client_rate         requests per second per client address, 0 for no limit (default 0)
+*           xserver.client_burst        requests a client may send at once above the rate (default the rate)
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+public class XserverLimiter
+{
+    static int CLIENT_CONNECTIONS = Integer.getInteger("xserver.client_connections", 0);
+    static int CLIENT_RATE = Integer.getInteger("xserver.client_rate", 0);
+    static int CLIENT_BURST = Integer.getInteger("xserver.client_burst", CLIENT_RATE);
+    static final int EVICT_INTERVAL = 10000; // ms
+
+    static XserverLimiter limiter; // shared by both server engines, null when disabled
+
+    ConcurrentHashMap<String, XserverBucket> clients = new ConcurrentHashMap<>();
+    long interval;      // ns between two tokens, 0 without a rate limit
+    long burst_window;  // ns a bucket may run ahead of the clock
+    LongAdder refused = new LongAdder();
+    byte[] response429;
+    Thread evictor;
+
+    public XserverLimiter(int rate, int burst)
+    {
+        interval = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+        burst_window = interval * Math.max(burst, 1);
+        String message = XserverProcessor.message429();
+        response429 = ("HTTP/1.1 429 Too Many Requests\r\n" +
+                "Retry-After: " + Xserver.RETRY_AFTER + "\r\n" +
+                "Content-Length: " + message.length() + "\r\n" +
+                "Connection: close\r\n\r\n" +
+                message).getBytes(StandardCharsets.ISO_8859_1);
+
+        evictor = new Thread(this::evict, "xserver-limiter-evict");
+        evictor.setDaemon(true);
+        evictor.start();
+    }
+
+    // the configured limiter, called once by the server
+    static void open()
+    {
+        if (CLIENT_CONNECTIONS <= 0 && CLIENT_RATE <= 0)
+            return;
+        limiter = new XserverLimiter(CLIENT_RATE, CLIENT_BURST);
+        XserverMetrics.gauge("xserver_limiter_clients", () -> limiter.clients.size());
+        XserverMetrics.gauge("xserver_limiter_refused_connections", () -> limiter.refused.sum());
+    }
+
+    // count a new connection of the client, false if it is over its cap and has to be refused
+    boolean connect(String client)
+    {
+        while (true)
+        {
+            XserverBucket bucket = clients.get(client);
+            if (bucket == null)
+            {
+                bucket = new XserverBucket();
+                XserverBucket present = clients.putIfAbsent(client, bucket);
+                if (present != null)
+                    bucket = present;
+            }
+            int open = bucket.connections.get();
+            if (open < 0) // evicted under us, make sure it is gone and start over
+            {
+                clients.remove(client, bucket);
+                continue;
+            }
+            if (CLIENT_CONNECTIONS > 0 && open >= CLIENT_CONNECTIONS)
+            {
+                refused.increment();
+                return false;
+            }
+            if (bucket.connections.compareAndSet(open, open + 1))
+                return true;
+        }
+    }
+
+    // a connection counted by connect() is closed
+    void disconnect(String client)
+    {
+        XserverBucket bucket = clients.get(client); // cannot be evicted while it has connections
+        if (bucket != null)
+            bucket.connections.decrementAndGet();
+    }
+
+    // the bucket of a connected client, stays in the map as long as the connection is open
+    XserverBucket bucket(String client)
+    {
+        return clients.get(client);
+    }
+
+    // take a token for a request, returns 0 if there was one, else the ns until the next one is due
+    long take(XserverBucket bucket)
+    {
+        if (interval == 0 || bucket == null)
+            return 0;
+        long now = System.nanoTime();
+        while (true)
+        {
+            long due = bucket.due.get();
+            long next = (due - now < 0 ? now : due) + interval;
+            if (next - now > burst_window)
+                return next - now - burst_window;
+            if (bucket.due.compareAndSet(due, next))
+                return 0;
+        }
+    }
+
+    //
+    // EVICTION
+    //
+
+    void evict()
+    {
+        while (true)
+        {
+            try {
+                TimeUnit.MILLISECONDS.sleep(EVICT_INTERVAL);
+            } catch (InterruptedException e) {
+                break;
+            }
+            long now = System.nanoTime();
+            int evicted = 0;
+            for (Map.Entry<String, XserverBucket> entry : clients.entrySet())
+            {
+                XserverBucket bucket = entry.getValue();
+                // no connection and a full bucket, a new entry would be the same
+                if (bucket.due.get() - now <= 0 && bucket.connections.compareAndSet(0, Integer.MIN_VALUE))
+                {
+                    clients.remove(entry.getKey(), bucket); // connect() may already have replaced it
+                    evicted++;
+                }
+            }
+            if (evicted > 0)
+                Xserver.debug("Limiter evicted " + evicted + " clients, " + clients.size() + " left");
+        }
+    }
+}
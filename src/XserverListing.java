@@ -0,0 +1,112 @@
+/*
+*       XServerListing - Directory listings of XServer
+*
+*       Architecture:
+*       * class XserverListing is a directory's entries as an HTML page, a streamed body
+*           the page is made while the directory is read, ENTRIES entries per part, in directory order
+*           (sorting would need all entries before the first one is sent)
+*           the directory stays open between the parts and is closed with the last one or by close()
+*           the links are percent-encoded (UTF-8), the processor decodes request paths the same way
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+
+class XserverListing implements XserverBody
+{
+    static final int ENTRIES = 64; // per part
+    static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    Path dir;
+    String base;        // request path of the directory, ends with "/"
+    DirectoryStream<Path> entries;
+    Iterator<Path> it;
+    boolean done = false;
+
+    public XserverListing(Path dir, String base)
+    {
+        this.dir = dir;
+        this.base = base;
+    }
+
+    @Override
+    public boolean writeNext(OutputStream out) throws IOException
+    {
+        if (done)
+            return false;
+        if (entries == null)
+        {
+            write(out, "<!DOCTYPE html>\n<html><head><title>Index of " + escape(base) + "</title></head><body>\n");
+            write(out, "<h1>Index of " + escape(base) + "</h1>\n<ul>\n");
+            if (!base.equals("/"))
+                write(out, "<li><a href=\"" + encode(base.substring(0, base.lastIndexOf('/', base.length() - 2) + 1))
+                        + "\">../</a></li>\n");
+            entries = Files.newDirectoryStream(dir);
+            it = entries.iterator();
+        }
+        try
+        {
+            for (int i = 0; i < ENTRIES && it.hasNext(); i++)
+            {
+                Path entry = it.next();
+                String name = entry.getFileName().toString() + (Files.isDirectory(entry) ? "/" : "");
+                write(out, "<li><a href=\"" + encode(base + name) + "\">" + escape(name) + "</a></li>\n");
+            }
+            if (it.hasNext())
+                return true;
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        }
+        write(out, "</ul>\n</body></html>\n");
+        close();
+        return false;
+    }
+
+    @Override
+    public void close()
+    {
+        done = true;
+        if (entries != null)
+            try {
+                entries.close();
+            } catch (IOException ignored) {}
+    }
+
+    //
+    // MACROS
+    //
+
+    static void write(OutputStream out, String html) throws IOException
+    {
+        out.write(html.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // a path as a URL path: '/' and the unreserved characters stay, every other UTF-8 byte becomes %XX,
+    // so the result needs no HTML escaping either
+    static String encode(String path)
+    {
+        StringBuilder encoded = new StringBuilder(path.length() + 16);
+        for (byte b : path.getBytes(StandardCharsets.UTF_8))
+        {
+            char c = (char) (b & 0xff);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '/' || c == '-' || c == '.' || c == '_' || c == '~')
+                encoded.append(c);
+            else
+                encoded.append('%').append(HEX[c >> 4]).append(HEX[c & 0xf]);
+        }
+        return encoded.toString();
+    }
+
+    static String escape(String text)
+    {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+}
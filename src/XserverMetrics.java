@@ -0,0 +1,163 @@
+/*
+*       XServerMetrics - Request instrumentation of XServer
+*
+*       Architecture:
+*       * class XserverMetrics collects per request measurements of all processors
+*           request and byte counters are LongAdders, so recording never takes a lock
+*           parse, file lookup and write times go into fixed bucket latency histograms
+*           servers register gauges (queue depth, pool size, ...) that are read only when scraped
+*       * class XserverHistogram is a fixed bucket histogram, 4 buckets per power of two from 1us up to 2^34 us
+*           recording is a binary search over the bucket bounds and one atomic increment
+*           quantiles are reported as the upper bound of their bucket (at most 19% above the exact value)
+*
+*       The metrics are served on the reserved path /__metrics in the Prometheus text format.
+ */
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+
+public class XserverMetrics
+{
+    static final String PATH = "/__metrics";
+
+    // status codes with their own counter, anything else is counted as "other"
+    static final int[] STATUS_CODES = {200, 206, 304, 400, 404, 416, 429, 431, 503};
+
+    static final LongAdder[] responses = new LongAdder[STATUS_CODES.length + 1];
+    static final LongAdder bytes_sent = new LongAdder();
+    static final XserverHistogram parse_time = new XserverHistogram();
+    static final XserverHistogram lookup_time = new XserverHistogram();
+    static final XserverHistogram write_time = new XserverHistogram();
+    static final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    static
+    {
+        for (int i = 0; i < responses.length; i++)
+            responses[i] = new LongAdder();
+    }
+
+    // one finished request, times in ns
+    static void record(int status, long parse_ns, long lookup_ns, long write_ns, long bytes)
+    {
+        responses[statusIndex(status)].increment();
+        bytes_sent.add(bytes);
+        parse_time.record(parse_ns);
+        lookup_time.record(lookup_ns);
+        write_time.record(write_ns);
+    }
+
+    // responses that never reach a processor, e.g. shed connections
+    static void count(int status, long bytes)
+    {
+        responses[statusIndex(status)].increment();
+        bytes_sent.add(bytes);
+    }
+
+    static void gauge(String name, LongSupplier value)
+    {
+        gauges.put(name, value);
+    }
+
+    static int statusIndex(int status)
+    {
+        for (int i = 0; i < STATUS_CODES.length; i++)
+            if (STATUS_CODES[i] == status)
+                return i;
+        return STATUS_CODES.length;
+    }
+
+    // everything in the Prometheus text exposition format
+    static String render()
+    {
+        StringBuilder out = new StringBuilder();
+
+        out.append("# TYPE xserver_responses_total counter\n");
+        for (int i = 0; i < responses.length; i++)
+        {
+            String code = i < STATUS_CODES.length ? String.valueOf(STATUS_CODES[i]) : "other";
+            out.append("xserver_responses_total{status=\"").append(code).append("\"} ")
+               .append(responses[i].sum()).append('\n');
+        }
+        out.append("# TYPE xserver_bytes_sent_total counter\n");
+        out.append("xserver_bytes_sent_total ").append(bytes_sent.sum()).append('\n');
+
+        parse_time.render(out, "xserver_parse_seconds");
+        lookup_time.render(out, "xserver_lookup_seconds");
+        write_time.render(out, "xserver_write_seconds");
+
+        for (Map.Entry<String, LongSupplier> gauge : new TreeMap<>(gauges).entrySet())
+        {
+            out.append("# TYPE ").append(gauge.getKey()).append(" gauge\n");
+            out.append(gauge.getKey()).append(' ').append(gauge.getValue().getAsLong()).append('\n');
+        }
+        return out.toString();
+    }
+}
+
+
+class XserverHistogram
+{
+    static final int SUB_BUCKETS = 4;   // per power of two
+    static final int RANGES = 34;       // powers of two covered, 1us .. 2^34 us (~4.7 hours)
+    static final int BUCKETS = SUB_BUCKETS * RANGES;
+    static final long[] BOUNDS = new long[BUCKETS]; // upper bound of each bucket in ns
+
+    static
+    {
+        for (int i = 0; i < BUCKETS; i++)
+            BOUNDS[i] = Math.round(1000 * Math.pow(2, (double) i / SUB_BUCKETS));
+    }
+
+    AtomicLongArray counts = new AtomicLongArray(BUCKETS + 1); // last one is overflow
+    LongAdder sum = new LongAdder();
+
+    void record(long ns)
+    {
+        int i = Arrays.binarySearch(BOUNDS, ns);
+        if (i < 0)
+            i = -i - 1; // first bound above ns
+        counts.incrementAndGet(i);
+        sum.add(ns);
+    }
+
+    // upper bound in ns of the bucket holding the given quantile, 0 when empty
+    long quantile(long[] snapshot, long total, double q)
+    {
+        if (total == 0)
+            return 0;
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++)
+        {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return i < BUCKETS ? BOUNDS[i] : Long.MAX_VALUE;
+        }
+        return BOUNDS[BUCKETS - 1];
+    }
+
+    void render(StringBuilder out, String name)
+    {
+        // counts may move while we read them, the snapshot only has to be consistent with itself
+        long[] snapshot = new long[counts.length()];
+        long total = 0;
+        for (int i = 0; i < snapshot.length; i++)
+        {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+
+        out.append("# TYPE ").append(name).append(" summary\n");
+        for (double q : new double[] {0.5, 0.99, 0.999})
+            out.append(name).append("{quantile=\"").append(q).append("\"} ")
+               .append(quantile(snapshot, total, q) / 1e9).append('\n');
+        out.append(name).append("_sum ").append(sum.sum() / 1e9).append('\n');
+        out.append(name).append("_count ").append(total).append('\n');
+    }
+}
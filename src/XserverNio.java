@@ -0,0 +1,741 @@
+/*
+*       XServerNio - Event loop engine for XServer
+*
+*       Architecture:
+*       * class XserverNio is the server
+*           the class opens a non-blocking server channel and spawns the required number of event loops
+*           accepted channels are handed out to the event loops round robin
+*           with several acceptors (-Dxserver.acceptors) each has its own channel and its own share of the loops
+*       * class XserverEventLoop multiplexes many client channels on a single Selector
+*           it only reacts to readiness - reads the available bytes, renders responses and writes as much as it can
+*           once a second it closes connections idle for longer than the processor's idle timeout
+*           while draining it closes connections between requests and lets the others finish their responses
+*       * class XserverNioConnection holds the per client state of an event loop
+*           requests are parsed in place from its read buffer by the processor's XserverRequestParser,
+*           responses are rendered by that detached XserverProcessor,
+*           so the GET/400/404 semantics stay the same as in the thread pool mode
+*           file bodies are queued as file regions and sent with transferTo as the socket drains
+*           a streamed body (directory listing) is made a chunk at a time into one reused buffer, the next chunk
+*           only once the socket took the last, so a slow client holds one chunk and not the whole body
+*           a request starting HTTP/2 (preface or h2c upgrade) takes its connection out of the loop,
+*           it is served by XserverH2 on one of its threads and counts against its connection cap
+*           the per client limits of XserverLimiter apply as in the other modes, over the connection cap
+*           a client is refused by the acceptor, before it is handed to a loop
+*
+*       Usage:
+*           java Xserver  <Server port, Int>  <full root directory path, String>  <event loop count, Int>  nio
+*           without any incoming connection the server closes after 40s (default)
+*           shutdown() and SIGTERM/SIGINT drain the connections the same way as in the other modes, see Xserver
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+public class XserverNio
+{
+    static boolean DEBUG = Xserver.DEBUG;
+
+    int timeout = 40000;
+    ServerSocketChannel[] xsrv_channels;    // one per acceptor, see Xserver.listen
+    ArrayList<Thread> thread_list;
+    XserverEventLoop[] loops;
+    Selector[] accept_selectors;
+    volatile long last_accept = System.currentTimeMillis();
+    volatile boolean stopping = false;
+    CountDownLatch stopped = new CountDownLatch(1);
+
+    public XserverNio(int port, String root, int loop_count)
+    {
+        int acceptors = Math.max(Xserver.ACCEPTORS, 1);
+        xsrv_channels = Xserver.listen(port, acceptors);
+        accept_selectors = new Selector[acceptors];
+        try
+        {
+            for (int i = 0; i < acceptors; i++)
+                accept_selectors[i] = Selector.open();
+        } catch (IOException e) {
+            error("Failed to open selector", e.getMessage());
+        }
+
+        XserverProcessor.cache = XserverCache.open(root);
+        XserverProcessor.index = XserverIndex.open(root);
+        XserverAccessLog.open();
+        XserverLimiter.open();
+        XserverH2.open(null);
+
+        // start event loops, at least one per acceptor
+        loops = new XserverEventLoop[Math.max(loop_count, acceptors)];
+        thread_list = new ArrayList<>();
+        for (int i = 0; i < loops.length; i++)
+        {
+            try
+            {
+                loops[i] = new XserverEventLoop(root);
+            } catch (IOException e) {
+                error("Failed to open selector", e.getMessage());
+            }
+            Thread thread = new Thread(loops[i], "xserver-loop-" + i);
+            thread.start();
+            thread_list.add(thread);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(this::onSignal, "xserver-shutdown"));
+
+        // main loop, the first acceptor runs on this thread, each feeds its own share of the event loops
+        Thread[] acceptor_threads = new Thread[acceptors];
+        for (int i = 1; i < acceptors; i++)
+        {
+            final int acceptor = i;
+            acceptor_threads[i] = new Thread(() -> acceptLoop(acceptor, acceptors), "xserver-acceptor-" + i);
+            acceptor_threads[i].start();
+        }
+        acceptLoop(0, acceptors);
+        shutdown(); // after a timeout, stops the other acceptors too
+        for (int i = 1; i < acceptors; i++)
+            try {
+                acceptor_threads[i].join();
+            } catch (InterruptedException ignored) {}
+        try {
+            for (ServerSocketChannel channel : xsrv_channels)
+                channel.close();
+        } catch (IOException e) {
+            error("Failed to close server", e.getMessage());
+        }
+
+        // no new connections, let the open ones finish before the loops go
+        long start = System.currentTimeMillis();
+        int h2_idle = XserverProcessor.drainIdle(); // HTTP/2 connections are served off the loops
+        int h2_busy = XserverProcessor.active.size() - h2_idle;
+        for (XserverEventLoop loop : loops)
+            loop.drain();
+        while ((connections() > 0 || !XserverProcessor.active.isEmpty())
+                && System.currentTimeMillis() - start < Xserver.DRAIN_TIMEOUT)
+            sleep(10);
+        int h2_forced = XserverProcessor.closeAll();
+
+        // end event loops, they close what is still open
+        for (XserverEventLoop loop : loops)
+            loop.shutdown();
+        for (Thread thread : thread_list)
+            try {
+                thread.join();
+            } catch (InterruptedException ignored) {}
+        int in_flight = h2_busy, idle = h2_idle, forced = h2_forced;
+        for (XserverEventLoop loop : loops)
+        {
+            in_flight += loop.drain_busy;
+            idle += loop.drain_idle;
+            forced += loop.forced;
+        }
+        Xserver.drained(System.currentTimeMillis() - start, in_flight, idle, forced);
+
+        if (XserverProcessor.cache != null)
+            XserverProcessor.cache.close();
+        if (XserverProcessor.index != null)
+            XserverProcessor.index.close();
+        XserverAccessLog.close();
+        stopped.countDown();
+    }
+
+    // stop accepting, the server then drains its connections and the constructor returns
+    public void shutdown()
+    {
+        if (stopping)
+            return;
+        stopping = true;
+        for (Selector accept_selector : accept_selectors)
+            accept_selector.wakeup();
+    }
+
+    // shutdown hook (SIGTERM, SIGINT), the JVM exits once the server is drained
+    void onSignal()
+    {
+        shutdown();
+        if (Xserver.exiting) // nothing drains after error(), the process ends now
+            return;
+        try {
+            stopped.await(Xserver.DRAIN_TIMEOUT + 1000L, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ignored) {}
+    }
+
+    int connections()
+    {
+        int open = 0;
+        for (XserverEventLoop loop : loops)
+            open += loop.connections;
+        return open;
+    }
+
+    void acceptLoop(int acceptor, int acceptors)
+    {
+        // loops acceptor, acceptor + acceptors, ... belong to this acceptor
+        int first_loop = acceptor;
+        int next_loop = first_loop;
+        Selector accept_selector = accept_selectors[acceptor];
+        ServerSocketChannel xsrv_channel = xsrv_channels[acceptor];
+        try
+        {
+            xsrv_channel.configureBlocking(false);
+            xsrv_channel.register(accept_selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            error("Failed to open selector", e.getMessage());
+        }
+
+        while (!stopping)
+        {
+            try
+            {
+                if (accept_selector.select(timeout) == 0)
+                {
+                    if (stopping) // woken up by shutdown()
+                        break;
+                    // we use timeout as termination method, once no acceptor has seen a connection for that long
+                    if (System.currentTimeMillis() - last_accept >= timeout)
+                        break;
+                    continue;
+                }
+                accept_selector.selectedKeys().clear();
+                last_accept = System.currentTimeMillis();
+
+                // accept everything that is waiting, a burst should not cost one select per client
+                SocketChannel channel;
+                while ((channel = xsrv_channel.accept()) != null)
+                {
+                    if (!admit(channel))
+                        continue;
+                    loops[next_loop].register(channel);
+                    next_loop += acceptors;
+                    if (next_loop >= loops.length)
+                        next_loop = first_loop;
+                }
+            } catch (IOException e) {
+                error("Failed to listen to connection", e.getMessage());
+            }
+        }
+
+        try {
+            accept_selector.close();
+        } catch (IOException e) {
+            error("Failed to close selector", e.getMessage());
+        }
+    }
+
+    // count the connection of its client, one over the client's cap is refused before it reaches a loop
+    boolean admit(SocketChannel channel)
+    {
+        XserverLimiter limiter = XserverLimiter.limiter;
+        if (limiter == null)
+            return true;
+        if (limiter.connect(channel.socket().getInetAddress().getHostAddress()))
+            return true;
+        XserverMetrics.count(429, limiter.response429.length);
+        Xserver.refuse(channel.socket(), limiter.response429); // still blocking, as accepted
+        return false;
+    }
+
+    //
+    // MACROS
+    //
+
+    // sleep in ms
+    static void sleep(int milliseconds)
+    {
+        try {
+            TimeUnit.MILLISECONDS.sleep(milliseconds);
+        } catch (InterruptedException ignored) {}
+    }
+
+    // methods for handling errors, because I'm lazy to type it out each time
+    static void error(String err_msg)
+    {
+        System.err.println("Error: " + err_msg);
+        Xserver.exiting = true;
+        System.exit(1);
+    }
+
+    // overriding for the case of caught exception
+    static void error(String err_msg, String excep_msg)
+    {
+        System.err.println("Error: " + err_msg);
+        System.err.println("This error was caused by the following exception:");
+        System.err.println(excep_msg);
+        Xserver.exiting = true;
+        System.exit(1);
+    }
+
+    // debug method
+    static void debug(String msg)
+    {
+        if (DEBUG)
+            System.out.println(msg);
+    }
+}
+
+
+class XserverEventLoop implements Runnable
+{
+    Selector selector;
+    Queue<SocketChannel> pending;
+    ArrayList<XserverNioConnection> handoffs = new ArrayList<>(); // switching to HTTP/2, see handOff()
+    String root;
+    volatile boolean running = true;
+    volatile boolean draining = false;
+    volatile int connections = 0;   // open connections, read by the server while it drains
+    long last_sweep = 0;
+    static final int SWEEP_INTERVAL = 1000;
+
+    // drain summary, written by the loop and read by the server after it ended
+    int drain_busy = -1;    // connections in the middle of a request when draining started
+    int drain_idle = 0;
+    int forced = 0;
+
+    public XserverEventLoop(String root) throws IOException
+    {
+        this.root = root;
+        selector = Selector.open();
+        pending = new ConcurrentLinkedQueue<>();
+    }
+
+    // a connection switching to HTTP/2 leaves the loop, its thread is started once the key is deregistered
+    void handOff(XserverNioConnection conn)
+    {
+        conn.key.cancel();
+        connections--;
+        handoffs.add(conn);
+        selector.wakeup();
+    }
+
+    // called from the accepting thread, the channel is registered by the loop itself
+    void register(SocketChannel channel)
+    {
+        pending.add(channel);
+        selector.wakeup();
+    }
+
+    void shutdown()
+    {
+        running = false;
+        selector.wakeup();
+    }
+
+    void drain()
+    {
+        draining = true;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run()
+    {
+        while (running)
+        {
+            try
+            {
+                selector.select(SWEEP_INTERVAL);
+            } catch (IOException e) {
+                XserverNio.error("Failed to select", e.getMessage());
+            }
+            for (XserverNioConnection conn : handoffs) // the select has deregistered their keys
+                conn.startH2();
+            handoffs.clear();
+            registerPending();
+            closeIdle();
+            if (draining)
+                closeDrained();
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext())
+            {
+                SelectionKey key = it.next();
+                it.remove();
+                XserverNioConnection conn = (XserverNioConnection) key.attachment();
+                if (!key.isValid())
+                    continue;
+                try
+                {
+                    if (key.isWritable())
+                        conn.onWritable();
+                    if (key.isValid() && key.isReadable())
+                        conn.onReadable();
+                } catch (RuntimeException e) {
+                    // a bug in handling one request must not take the loop and its other connections down
+                    System.err.println("Warning: failed to handle a request, closing its connection: " + e);
+                    conn.close();
+                }
+            }
+        }
+
+        // close whatever is still connected
+        registerPending();
+        for (SelectionKey key : selector.keys())
+            if (key.isValid())
+            {
+                ((XserverNioConnection) key.attachment()).close();
+                forced++;
+            }
+        if (drain_busy == -1) // never drained
+            drain_busy = 0;
+        try {
+            selector.close();
+        } catch (IOException e) {
+            XserverNio.error("Failed to close selector", e.getMessage());
+        }
+    }
+
+    // drop connections that did nothing for longer than the idle timeout
+    void closeIdle()
+    {
+        long now = System.currentTimeMillis();
+        if (now - last_sweep < SWEEP_INTERVAL)
+            return;
+        last_sweep = now;
+        for (SelectionKey key : selector.keys())
+        {
+            XserverNioConnection conn = (XserverNioConnection) key.attachment();
+            if (key.isValid() && now - conn.last_active > XserverProcessor.IDLE_TIMEOUT)
+            {
+                XserverNio.debug("Idle timeout");
+                conn.close();
+            }
+        }
+    }
+
+    // while draining, connections between requests are closed, the others once their last response is out
+    void closeDrained()
+    {
+        int busy = 0;
+        for (SelectionKey key : selector.keys())
+        {
+            XserverNioConnection conn = (XserverNioConnection) key.attachment();
+            if (!key.isValid())
+                continue;
+            if (conn.idle())
+            {
+                conn.close();
+                if (drain_busy == -1) // later ones were busy when draining started
+                    drain_idle++;
+            }
+            else
+                busy++;
+        }
+        if (drain_busy == -1)
+            drain_busy = busy;
+    }
+
+    void registerPending()
+    {
+        SocketChannel channel;
+        while ((channel = pending.poll()) != null)
+        {
+            try
+            {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new XserverNioConnection(this, channel, key, root));
+                connections++;
+            } catch (IOException e) {
+                XserverNio.debug("Failed to register client: " + e.getMessage());
+                if (XserverLimiter.limiter != null)
+                    XserverLimiter.limiter.disconnect(channel.socket().getInetAddress().getHostAddress());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+}
+
+
+class XserverNioConnection
+{
+    static final int STREAM_CHUNKS = 16;    // chunks of a streamed body written per event
+
+    XserverEventLoop loop;
+    SocketChannel channel;
+    SelectionKey key;
+    ByteBuffer read_buf;
+    ArrayDeque<XserverNioWrite> write_queue;
+    XserverProcessor processor;
+    XserverChunkedOutput chunked;   // reused for every streamed body
+    XserverBody streaming;          // the streamed body being sent, null when there is none
+    ByteBuffer stream_buf;          // the part of it being written, refilled once the socket took it
+    boolean resume = false;         // a streamed body ended, the requests read behind it are answered next
+    boolean close_after_write = false;
+    long last_active = System.currentTimeMillis();
+
+    public XserverNioConnection(XserverEventLoop loop, SocketChannel channel, SelectionKey key, String root)
+    {
+        this.loop = loop;
+        this.channel = channel;
+        this.key = key;
+        read_buf = ByteBuffer.allocate(XserverRequestParser.MAX_HEADER);
+        write_queue = new ArrayDeque<>();
+        processor = new XserverProcessor(root);
+        processor.client = channel.socket().getInetAddress().getHostAddress();
+    }
+
+    void onReadable()
+    {
+        last_active = System.currentTimeMillis();
+        int n;
+        try
+        {
+            n = channel.read(read_buf);
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        if (n == -1)
+        {
+            close();
+            return;
+        }
+        process();
+    }
+
+    // several requests may have arrived at once (pipelining), answer all complete ones
+    // a streamed body holds the ones behind it until it is complete
+    void process()
+    {
+        read_buf.flip();
+        int status;
+        while (!close_after_write && streaming == null
+                && (status = processor.parse(read_buf)) != XserverRequestParser.INCOMPLETE)
+        {
+            // over the HTTP/2 connection cap an Upgrade is served as HTTP/1.1, a connection preface gets a 400
+            if (XserverH2.H2 && status == XserverRequestParser.COMPLETE && XserverH2.starts(processor.parser)
+                    && XserverH2.admit())
+            {
+                // HTTP/2 is served off the loop, the buffer is left as it is for it
+                processor.parse_status = status;
+                loop.handOff(this);
+                return;
+            }
+            processRequest(status);
+            processor.parser.consume(read_buf);
+        }
+        read_buf.compact();
+
+        flush();
+    }
+
+    void onWritable()
+    {
+        last_active = System.currentTimeMillis();
+        flush();
+    }
+
+    void processRequest(int status)
+    {
+        write_queue.add(new XserverNioWrite(processor.respond(status)));
+
+        // the file body is ours now, it is transferred once the head is out
+        long[] ranges = processor.ranges;
+        if (processor.file_channel != null && ranges == null)
+            write_queue.add(new XserverNioWrite(processor.file_channel, 0, processor.content_length, true));
+        else if (processor.file_channel != null)
+        {
+            // one region per range, the last one closes the file
+            for (int i = 0; i < ranges.length; i += 2)
+            {
+                if (ranges.length > 2)
+                    write_queue.add(XserverNioWrite.ascii(processor.partHead(i)));
+                write_queue.add(new XserverNioWrite(processor.file_channel, ranges[i], ranges[i + 1], i == ranges.length - 2));
+            }
+            if (ranges.length > 2)
+                write_queue.add(XserverNioWrite.ascii(XserverProcessor.multipartEnd()));
+        }
+        processor.file_channel = null;
+        if (processor.stream_body != null)
+            stream();
+
+        // same as the pool mode: bad requests, Connection: close and the request limit end the connection
+        if (!processor.keep_alive)
+            close_after_write = true;
+    }
+
+    // serve the connection as HTTP/2 on a thread of XserverH2, blocking like the pool mode
+    void startH2()
+    {
+        byte[] rest = XserverH2.rest(read_buf, processor.parser);
+        XserverH2.executor.execute(() ->
+        {
+            try
+            {
+                channel.configureBlocking(true);
+                processor.socket = channel.socket();
+                processor.socket.setSoTimeout(XserverProcessor.IDLE_TIMEOUT);
+                // responses to the requests before the switch go first
+                for (XserverNioWrite write = write_queue.poll(); write != null; write = write_queue.poll())
+                {
+                    while (!write.writeTo(channel))
+                        ;
+                    write.release();
+                }
+                XserverProcessor.active.add(processor);
+                new XserverH2(processor, processor.socket.getInputStream(), processor.socket.getOutputStream(), rest)
+                        .serve();
+            } catch (IOException e) {
+                XserverNio.debug("Failed to switch to HTTP/2: " + e.getMessage());
+                XserverH2.connections.decrementAndGet();
+            }
+            XserverProcessor.active.remove(processor);
+            for (XserverNioWrite write : write_queue)
+                write.release();
+            if (XserverLimiter.limiter != null)
+                XserverLimiter.limiter.disconnect(processor.client);
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        });
+    }
+
+    // a streamed body, flush() makes a part of it whenever the socket took everything queued
+    void stream()
+    {
+        if (chunked == null)
+        {
+            stream_buf = ByteBuffer.allocate(2 * (XserverChunkedOutput.SIZE_LINE + XserverChunkedOutput.CHUNK + 2));
+            chunked = new XserverChunkedOutput();
+        }
+        chunked.reset(new OutputStream()
+        {
+            @Override
+            public void write(int b) throws IOException
+            {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException
+            {
+                if (stream_buf.remaining() < len) // a part larger than usual, the buffer keeps its new size
+                {
+                    ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * stream_buf.capacity(), stream_buf.position() + len));
+                    stream_buf.flip();
+                    stream_buf = larger.put(stream_buf);
+                }
+                stream_buf.put(b, off, len);
+            }
+        });
+        streaming = processor.stream_body;
+        processor.stream_body = null;
+    }
+
+    // queue the next chunk of the streamed body, the last one ends it
+    void produce()
+    {
+        stream_buf.clear();
+        try
+        {
+            boolean more = true;
+            while (more && stream_buf.position() == 0)
+                more = streaming.writeNext(chunked);
+            if (!more)
+            {
+                chunked.finish();
+                endStream();
+            }
+        } catch (IOException e) {
+            XserverNio.debug("Failed to stream body: " + e.getMessage());
+            close_after_write = true; // the body is cut short, the connection cannot be reused
+            endStream();
+        }
+        stream_buf.flip();
+        if (stream_buf.hasRemaining())
+            write_queue.add(new XserverNioWrite(stream_buf));
+    }
+
+    void endStream()
+    {
+        streaming.close();
+        streaming = null;
+        resume = true;
+        processor.bytes_sent += chunked.written;
+        processor.record();
+    }
+
+    // write as much as the socket accepts, wait for OP_WRITE for the rest
+    void flush()
+    {
+        try
+        {
+            // a streamed body gets STREAM_CHUNKS chunks at a time, then the other connections of the loop are served
+            for (int chunks = 0; ; chunks++)
+            {
+                while (!write_queue.isEmpty())
+                {
+                    if (!write_queue.peek().writeTo(channel))
+                        break;
+                    write_queue.poll().release();
+                }
+                if (!write_queue.isEmpty() || streaming == null || chunks == STREAM_CHUNKS)
+                    break;
+                produce();
+            }
+        } catch (IOException e) {
+            close();
+            return;
+        }
+
+        if (write_queue.isEmpty() && streaming == null)
+        {
+            if (close_after_write)
+            {
+                close();
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            if (resume)
+            {
+                resume = false;
+                process();
+            }
+        }
+        else // stop reading until the client has taken its responses
+            key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    // between requests, or before the first: nothing of the next one read and nothing left to write
+    boolean idle()
+    {
+        return read_buf.position() == 0 && write_queue.isEmpty() && streaming == null;
+    }
+
+    void close()
+    {
+        if (!channel.isOpen())
+            return;
+        loop.connections--;
+        key.cancel();
+        for (XserverNioWrite write : write_queue)
+            write.release();
+        write_queue.clear();
+        if (streaming != null)
+            streaming.close();
+        streaming = null;
+        if (XserverLimiter.limiter != null)
+            XserverLimiter.limiter.disconnect(processor.client);
+        try
+        {
+            channel.close();
+            XserverNio.debug("Connection Closed");
+        } catch (IOException e) {
+            XserverNio.debug("Failed to close connection: " + e.getMessage());
+        }
+    }
+}
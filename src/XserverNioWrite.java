@@ -0,0 +1,107 @@
+/*
+*       XServerNioWrite - Pending writes of XServer
+*
+*       Architecture:
+*       * class XserverNioWrite is a pending write of an event loop connection or an HTTP/2 stream,
+*           either buffers (written at once, with a gathering write) or a region of a file (sent with transferTo)
+*           writers that frame the data themselves (HTTP/2) copy it out with read()
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+
+class XserverNioWrite
+{
+    ByteBuffer[] bufs;
+    FileChannel file;
+    long position;
+    long end;
+    boolean owner;  // closes the file when released, regions of one file share it
+
+    public XserverNioWrite(ByteBuffer... bufs)
+    {
+        this.bufs = bufs;
+    }
+
+    public XserverNioWrite(FileChannel file, long position, long end, boolean owner)
+    {
+        this.file = file;
+        this.position = position;
+        this.end = end;
+        this.owner = owner;
+    }
+
+    static XserverNioWrite ascii(String s)
+    {
+        return new XserverNioWrite(ByteBuffer.wrap(s.getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    // write as much as the channel takes, true when everything is out
+    boolean writeTo(SocketChannel channel) throws IOException
+    {
+        if (bufs != null)
+        {
+            channel.write(bufs); // a gathering write, the parts of a cached response leave together
+            return !bufs[bufs.length - 1].hasRemaining();
+        }
+
+        // sendfile, the socket may take only part of it
+        while (position < end)
+        {
+            long n = file.transferTo(position, end - position, channel);
+            if (n <= 0)
+                return file.size() <= position; // socket full, unless the file shrunk under us
+            position += n;
+        }
+        return true;
+    }
+
+    long remaining()
+    {
+        if (bufs == null)
+            return end - position;
+        long remaining = 0;
+        for (ByteBuffer buf : bufs)
+            remaining += buf.remaining();
+        return remaining;
+    }
+
+    // copy up to length bytes, for writers that frame the data themselves (HTTP/2), -1 at the end
+    int read(byte[] dst, int offset, int length) throws IOException
+    {
+        if (bufs != null)
+        {
+            for (ByteBuffer buf : bufs)
+            {
+                int n = Math.min(length, buf.remaining());
+                if (n == 0)
+                    continue;
+                buf.get(dst, offset, n);
+                return n;
+            }
+            return -1;
+        }
+        int n = (int) Math.min(length, end - position);
+        if (n == 0)
+            return -1;
+        n = file.read(ByteBuffer.wrap(dst, offset, n), position);
+        if (n > 0)
+            position += n;
+        return n; // -1 if the file shrunk under us
+    }
+
+    void release()
+    {
+        if (file == null)
+            return;
+        if (owner)
+            try {
+                file.close();
+            } catch (IOException ignored) {}
+        file = null;
+    }
+}
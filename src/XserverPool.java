@@ -0,0 +1,209 @@
+/*
+*       XServerPool - Elastic pool of XserverThreads
+*
+*       Architecture:
+*       * class XserverPool owns the bounded client queue and the worker threads of the pool mode
+*           it starts with the core number of threads (the pool size given to Xserver)
+*           a monitor thread measures how long the oldest client has been waiting in the queue and how many wait,
+*           when the wait exceeds the target or the queue is deeper than the threshold, one more thread
+*           is started, up to the maximum - the depth catches a burst before its first client waited too long
+*           threads above the core size retire after being idle for a while, so the pool shrinks back
+*       * class XserverThread is a worker thread of the pool, it takes clients from the queue and serves them
+*       * class XserverClient is a queued client socket together with the time it was enqueued
+*
+*       Configuration (system properties):
+*           xserver.max_pool        largest number of threads (default 4 x pool size)
+*           xserver.queue_wait      longest acceptable queue wait in ms before the pool grows (default 20)
+*           xserver.queue_depth     most queued clients before the pool grows (default 0, the number of threads)
+*           xserver.thread_idle     idle time in ms after which a thread above the core size retires (default 30000)
+ */
+
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+public class XserverPool
+{
+    static int MAX_POOL = Integer.getInteger("xserver.max_pool", 0);
+    static int QUEUE_WAIT = Integer.getInteger("xserver.queue_wait", 20);
+    static int QUEUE_DEPTH = Integer.getInteger("xserver.queue_depth", 0);
+    static int THREAD_IDLE = Integer.getInteger("xserver.thread_idle", 30000);
+
+    BlockingQueue<XserverClient> queue;
+    String root;
+    int core_size;
+    int max_size;
+    AtomicInteger live = new AtomicInteger();
+    int peak_size = 0;
+    Set<Thread> threads = ConcurrentHashMap.newKeySet();
+    Thread monitor;
+    volatile boolean running = true;
+
+    public XserverPool(int capacity, String root, int core_size)
+    {
+        this.root = root;
+        this.core_size = Math.max(core_size, 1);
+        max_size = Math.max(MAX_POOL > 0 ? MAX_POOL : 4 * this.core_size, this.core_size);
+        queue = new ArrayBlockingQueue<>(capacity);
+
+        for (int i = 0; i < this.core_size; i++)
+            addThread();
+
+        monitor = new Thread(this::monitor, "xserver-pool-monitor");
+        monitor.setDaemon(true);
+        monitor.start();
+    }
+
+    // false if the queue is full, the caller sheds the client
+    boolean offer(Socket socket)
+    {
+        return queue.offer(new XserverClient(socket));
+    }
+
+    void shutdown()
+    {
+        running = false;
+        monitor.interrupt();
+        for (Thread thread : threads)
+            thread.interrupt();
+    }
+
+    int size()
+    {
+        return live.get();
+    }
+
+    int queueDepth()
+    {
+        return queue.size();
+    }
+
+    // close the clients still waiting in the queue, at the end of a drain
+    void closeQueued()
+    {
+        for (XserverClient client = queue.poll(); client != null; client = queue.poll())
+            Xserver.closeQuietly(client.socket);
+    }
+
+    // ms the oldest queued client has been waiting, 0 when the queue is empty
+    long oldestWait()
+    {
+        XserverClient head = queue.peek();
+        if (head == null)
+            return 0;
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - head.enqueued);
+    }
+
+    //
+    // FUNCTIONS
+    //
+
+    void monitor()
+    {
+        while (running)
+        {
+            sleep(Math.max(QUEUE_WAIT / 2, 5));
+
+            // clients wait longer than we accept, or more wait than the threads take at once - add one,
+            // check again next tick
+            int depth = QUEUE_DEPTH > 0 ? QUEUE_DEPTH : live.get();
+            if ((oldestWait() > QUEUE_WAIT || queue.size() > depth) && live.get() < max_size)
+            {
+                addThread();
+                Xserver.debug("Pool grown to " + live.get() + " threads");
+            }
+        }
+    }
+
+    void addThread()
+    {
+        int size = live.incrementAndGet();
+        peak_size = Math.max(peak_size, size);
+        Thread thread = new Thread(new XserverThread(this, root));
+        threads.add(thread);
+        thread.start();
+    }
+
+    // called by an idle thread, true if it may exit because the pool is above its core size
+    boolean retire(Thread thread)
+    {
+        while (true)
+        {
+            int size = live.get();
+            if (size <= core_size)
+                return false;
+            if (live.compareAndSet(size, size - 1))
+            {
+                threads.remove(thread);
+                Xserver.debug("Pool shrunk to " + (size - 1) + " threads");
+                return true;
+            }
+        }
+    }
+
+    // sleep in ms
+    static void sleep(int milliseconds)
+    {
+        try {
+            TimeUnit.MILLISECONDS.sleep(milliseconds);
+        } catch (InterruptedException ignored) {}
+    }
+}
+
+
+class XserverThread implements Runnable
+{
+    XserverPool pool;
+    String root;
+
+    public XserverThread(XserverPool pool, String root)
+    {
+        this.pool = pool;
+        this.root = root;
+    }
+
+    @Override
+    public void run()
+    {
+        while (true)
+        {
+            try
+            {
+                XserverClient client = pool.queue.poll(XserverPool.THREAD_IDLE, TimeUnit.MILLISECONDS);
+                if (client == null) // idle, threads above the core size leave
+                {
+                    if (pool.retire(Thread.currentThread()))
+                        break;
+                    continue;
+                }
+                try {
+                    new XserverProcessor(client.socket, root);
+                } catch (RuntimeException e) {
+                    // the thread must survive a failed client, the pool would never replace it
+                    System.err.println("Warning: failed to serve a client, closing its connection: " + e);
+                    Xserver.closeQuietly(client.socket);
+                }
+            } catch (InterruptedException e) {
+                break; // interrupt = terminate thread
+            }
+        }
+    }
+}
+
+
+class XserverClient
+{
+    Socket socket;
+    long enqueued;
+
+    public XserverClient(Socket socket)
+    {
+        this.socket = socket;
+        enqueued = System.nanoTime();
+    }
+}
@@ -0,0 +1,1033 @@
+/*
+*       XServerProcessor - Request processing of XServer
+*
+*       Architecture:
+*       * class XServerProcessor handles the communication with the client, including request processing
+*           it is single use and blocking - constructor returns only when the client is closed
+*           a detached processor (no socket) renders responses for the event loop engine, see XserverNio,
+*           and for HTTP/2 connections, see XserverH2
+*           requests are parsed by XserverRequestParser, files are looked up through XserverIndex or the disk
+*           and answered from XserverCache when they are hot, response heads are encoded by XserverHead
+ */
+
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import java.util.zip.GZIPOutputStream;
+
+
+class XserverProcessor
+{
+    static XserverCache cache; // shared by all processors, null when disabled
+    static XserverIndex index; // shared by all processors, null when disabled
+    static int IDLE_TIMEOUT = Integer.getInteger("xserver.idle_timeout", 10000);  // ms between requests
+    static int MAX_REQUESTS = Integer.getInteger("xserver.max_requests", 1000);   // per connection
+    static final int MAX_RANGES = 16;   // Range headers with more are ignored, the whole file is sent
+    static boolean GZIP = !System.getProperty("xserver.gzip", "true").equals("false");
+    static int GZIP_MAX = Integer.getInteger("xserver.gzip_max", 1 << 20); // largest file compressed on the fly
+    static final int GZIP_MIN = 256;    // smaller files do not get smaller
+    static final String GZIP_VARIANT = "\0gzip"; // cache key suffix of compressed responses
+    static boolean LISTING = Boolean.getBoolean("xserver.listing");       // directory listings instead of 404
+    static final String BOUNDARY = Long.toHexString(new java.util.Random().nextLong() | Long.MIN_VALUE);
+
+    // connections being served, for draining on shutdown
+    static final Set<XserverProcessor> active = ConcurrentHashMap.newKeySet();
+    static volatile boolean draining = false; // no more keep-alive, every connection closes after its response
+
+    Socket socket;
+    PrintStream writer;
+    InputStream reader;
+    BufferedReader file_reader;
+    ByteBuffer read_buf;                // raw request bytes, reused for every request of the connection
+    XserverRequestParser parser = new XserverRequestParser();
+    int parse_status;
+    String path;
+    String client = "-";        // remote address, for the access log
+    String method = "-";
+    String request_path = "-";
+    byte[] body;                // in-memory body (messages, small files), null when a file is sent
+    XserverBody stream_body;    // body produced while it is sent (chunked), e.g. a directory listing
+    XserverChunkedOutput chunked; // reused for every streamed body of the connection
+    byte[] cached;              // complete response (head + body) from the shared cache
+    FileChannel file_channel;   // file body, streamed to the client with transferTo
+    long content_length;
+    String content_type;        // of a file body, null for messages
+    String content_encoding;    // gzip or null
+    XserverFile file_info;      // validators of a file response, null for messages
+    long[] ranges;              // byte ranges of a 206 body, start and end (exclusive) pairs, null for whole bodies
+    long range_size;            // complete length of the file for Content-Range
+    int response_ok = 200;
+    Boolean file_exist;
+    String root_dir;
+    XserverHead head = new XserverHead(); // reused for every response of the connection
+    boolean keep_alive = true;
+    int request_cnt = 0;
+    volatile boolean idle = false;  // waiting for the next request with nothing of it read yet
+    XserverBucket bucket;       // rate limit of the client, see XserverLimiter
+    long retry_after;           // s, sent with a 429
+
+    // instrumentation of the current request, see XserverMetrics
+    long parse_ns;
+    long lookup_ns;
+    long write_ns;
+    long bytes_sent;
+    long start_ns;              // when the first byte of the request was parsed, 0 until then
+
+    public XserverProcessor(Socket client_socket, String root)
+    {
+        socket = client_socket;
+        root_dir = root;
+        active.add(this);
+        try
+        {
+            openConnection();
+
+            // main loop, pipelined requests are already waiting in read_buf and are answered back to back
+            do
+            {
+                processRequest();
+            }
+            while (!socket.isClosed() && keep_alive);
+
+            closeConnection();
+        }
+        catch (RuntimeException e)
+        {
+            // a bug in handling one request must not take the thread down, only this connection
+            System.err.println("Warning: failed to handle a request, closing its connection: " + e);
+            Xserver.closeQuietly(socket);
+            if (XserverLimiter.limiter != null)
+                XserverLimiter.limiter.disconnect(client);
+        }
+        finally
+        {
+            active.remove(this); // a drain must not wait for it
+        }
+    }
+
+    // detached processor, used by the event loop engine to render responses without owning a socket
+    XserverProcessor(String root)
+    {
+        root_dir = root;
+    }
+
+    void openConnection()
+    {
+        try
+        {
+            socket.setSoTimeout(IDLE_TIMEOUT); // idle keep-alive connections are dropped
+            socket.setTcpNoDelay(true);         // we flush whole responses, no need to wait for acks
+            client = socket.getInetAddress().getHostAddress();
+            reader = socket.getInputStream();
+            read_buf = ByteBuffer.allocate(XserverRequestParser.MAX_HEADER);
+            read_buf.flip(); // nothing read yet
+            writer = new PrintStream(new BufferedOutputStream(socket.getOutputStream(), 8192));
+        } catch (IOException e) {
+            error("Failed to set up buffered reader/writer", e.getMessage());
+        }
+    }
+
+    void processRequest()
+    {
+        file_exist = true;
+        response_ok = 200;
+        if (!readHeader())
+        {
+            response_ok = 600; // connection closed
+            keep_alive = false;
+            return;
+        }
+        // over the HTTP/2 connection cap an Upgrade is served as HTTP/1.1, a connection preface gets a 400
+        if (XserverH2.H2 && parse_status == XserverRequestParser.COMPLETE && XserverH2.starts(parser) && XserverH2.admit())
+        {
+            // the connection is HTTP/2 from here on, until it is closed
+            writer.flush();
+            try {
+                new XserverH2(this, reader, socket.getOutputStream(), XserverH2.rest(read_buf, parser)).serve();
+            } catch (IOException e) {
+                debug("Failed to switch to HTTP/2: " + e.getMessage());
+                XserverH2.connections.decrementAndGet();
+            }
+            keep_alive = false;
+            return;
+        }
+        handleRequest();
+
+        long start = System.nanoTime();
+        writeResponse(response_ok);
+        write_ns = System.nanoTime() - start;
+        record();
+        parser.consume(read_buf);
+    }
+
+    // parse what has arrived so far, the time spent is accumulated until the head is complete
+    int parse(ByteBuffer buf)
+    {
+        long start = System.nanoTime();
+        if (start_ns == 0 && buf.hasRemaining()) // not while the connection waits with nothing read
+            start_ns = start;
+        int status = parser.parse(buf);
+        parse_ns += System.nanoTime() - start;
+        return status;
+    }
+
+    void record()
+    {
+        XserverMetrics.record(response_ok, parse_ns, lookup_ns, write_ns, bytes_sent);
+        if (XserverAccessLog.log != null)
+            XserverAccessLog.log.log(client, method, request_path, response_ok, bytes_sent, since(start_ns));
+        parse_ns = start_ns = 0;
+        method = request_path = "-";
+    }
+
+    // record() for a response whose streamed body is sent by another thread, its bytes are added once it is complete
+    LongConsumer deferRecord()
+    {
+        int status = response_ok;
+        long parse = parse_ns, lookup = lookup_ns, write = write_ns, head = bytes_sent, start = start_ns;
+        String method = this.method, path = request_path;
+        parse_ns = start_ns = 0;
+        this.method = request_path = "-";
+        return body ->
+        {
+            XserverMetrics.record(status, parse, lookup, write, head + body);
+            if (XserverAccessLog.log != null)
+                XserverAccessLog.log.log(client, method, path, status, head + body, since(start));
+        };
+    }
+
+    // wall clock time of a request, from its first byte until it is recorded
+    static long since(long start)
+    {
+        return start == 0 ? 0 : System.nanoTime() - start;
+    }
+
+    // analyze the request the parser just completed and look up the file, shared by both server engines
+    void handleRequest()
+    {
+        long start = System.nanoTime();
+        request_cnt++;
+        if (parse_status == XserverRequestParser.TOO_LARGE) {
+            path = ":tag:too_large";
+            keep_alive = false;
+            debug("HEADER TOO LARGE");
+        }
+        else if (parse_status != XserverRequestParser.COMPLETE || !analyzeHeader()) {
+            path = ":tag:bad_request";
+            response_ok = 400;
+            keep_alive = false;
+            debug("BAD REQUEST");
+        }
+        else
+        {
+            keep_alive = !closeRequested() && request_cnt < MAX_REQUESTS && !draining;
+            if (rateLimited())
+                path = ":tag:rate_limited";
+        }
+        long analyzed = System.nanoTime();
+        parse_ns += analyzed - start;
+
+        getFile();
+        lookup_ns = System.nanoTime() - analyzed;
+    }
+
+    // no token left in the client's bucket, the request gets a 429
+    boolean rateLimited()
+    {
+        XserverLimiter limiter = XserverLimiter.limiter;
+        if (limiter == null)
+            return false;
+        if (bucket == null)
+            bucket = limiter.bucket(client);
+        long wait = limiter.take(bucket);
+        retry_after = (wait + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1);
+        return wait > 0;
+    }
+
+    // Connection: close from the client
+    boolean closeRequested()
+    {
+        int connection = parser.field("Connection");
+        return connection != -1 && parser.valueIs(connection, "close");
+    }
+
+    // render the response to the request the parser just completed into buffers, written in order,
+    // used by detached processors
+    ByteBuffer[] respond(int status)
+    {
+        parse_status = status;
+        file_exist = true;
+        response_ok = 200;
+
+        handleRequest();
+
+        // the event loop writes it later, write time here is the time to render it
+        long start = System.nanoTime();
+        ByteBuffer[] response;
+        if (cached != null)
+            response = cachedResponse();
+        else
+        {
+            encodeHead(response_ok, true);
+            response = new ByteBuffer[] {ByteBuffer.wrap(head.toArray(body))}; // the file body is left to the event loop
+        }
+        bytes_sent = file_channel != null ? content_length : 0;
+        for (ByteBuffer part : response)
+            bytes_sent += part.remaining();
+        write_ns = System.nanoTime() - start;
+        if (stream_body == null) // a streamed body is recorded by the event loop once it is produced
+            record();
+
+        return response;
+    }
+
+
+    // read until the parser has a complete head (or knows it is not acceptable)
+    boolean readHeader()
+    {
+        try {
+            while ((parse_status = parse(read_buf)) == XserverRequestParser.INCOMPLETE)
+            {
+                read_buf.compact();
+                // between requests (or before the first) a draining server closes the connection,
+                // drainIdle() checks the other way round
+                idle = read_buf.position() == 0;
+                if (idle && draining)
+                    return false;
+                int n = reader.read(read_buf.array(), read_buf.arrayOffset() + read_buf.position(), read_buf.remaining());
+                idle = false;
+                if (n == -1)
+                    return false;
+                read_buf.position(read_buf.position() + n);
+                read_buf.flip();
+            }
+        } catch (SocketTimeoutException e) {
+            debug("Idle timeout");
+            return false;
+        } catch (IOException e) {
+            debug("Failed to read header: " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    boolean analyzeHeader()
+    {
+        // http request, only GET over HTTP/1.1
+        method = parser.methodIs("GET") ? "GET" : parser.method();
+        if (!parser.methodIs("GET") || !parser.versionIs("HTTP/1.1") || !parser.pathStartsWith('/'))
+            return false;
+
+        // path, request_path stays as sent for the access log
+        request_path = parser.path();
+        path = XserverRequestParser.decodePath(request_path);
+        if (path == null)
+            return false;
+
+        // host, in any header line
+        int host = parser.field("Host");
+        return host != -1 && !parser.valueEmpty(host);
+    }
+
+    void getFile()
+    {
+        file_channel = null;
+        cached = null;
+        content_type = null;
+        content_encoding = null;
+        file_info = null;
+        ranges = null;
+        stream_body = null;
+        if (path.equals(":tag:bad_request"))
+        {
+            setBody(message400());
+            response_ok = 400;
+            return;
+        }
+        else if (path.equals(":tag:too_large"))
+        {
+            setBody(message431());
+            response_ok = 431;
+            return;
+        }
+        else if (path.equals(":tag:rate_limited"))
+        {
+            setBody(message429());
+            response_ok = 429;
+            return;
+        }
+        else if (path.equals("/") && !LISTING) {
+            setBody(messageIndex());
+            return;
+        }
+        else if (path.equals(XserverMetrics.PATH)) {
+            setBody(XserverMetrics.render());
+            return;
+        }
+        XserverFile file = null;
+        String key = XserverIndex.key(path); // "." and ".." resolved, the result stays below the root
+        if (key != null && index != null)
+        {
+            // the index knows every file of the root, anything else is a 404 without a file system access
+            file = index.get(key);
+            if (file != null)
+                path = file.path.toString();
+        }
+        else if (key != null)
+            path = root_dir + key;
+        if (key == null || (index != null && file == null))
+        {
+            // the index only has files, directories are looked up on the disk
+            if (key != null && LISTING && Files.isDirectory(Paths.get(root_dir + key)))
+            {
+                setListing(Paths.get(root_dir + key), key);
+                return;
+            }
+            setBody(message404());
+            response_ok = 404;
+            return;
+        }
+
+        // ranges always refer to the uncompressed file
+        boolean gzip = GZIP && parser.field("Range") == -1 && acceptsGzip();
+
+        // hot files are answered from memory, without touching the file system
+        String cache_key = null;
+        long cache_stamp = 0;
+        if (cache != null)
+        {
+            cache_key = XserverCache.key(path);
+            XserverCache.Entry entry = gzip ? cache.get(cache_key + GZIP_VARIANT) : null;
+            if (entry != null)
+            {
+                content_encoding = "gzip";
+                if (!notModified(entry.file))
+                    cached = entry.response;
+                return;
+            }
+            entry = cache.get(cache_key);
+            if (entry != null && !(gzip && entry.file.size >= GZIP_MIN && compressible(entry.file.content_type)))
+            {
+                if (notModified(entry.file))
+                    return;
+                if (parser.field("Range") == -1)
+                {
+                    cached = entry.response;
+                    return;
+                }
+            }
+            if (entry != null)
+                file = entry.file; // ranges and the compressed variant are made from the file
+            cache_stamp = cache.stamp();
+        }
+
+        // the file is only opened here, large files never pass through the heap
+        Path file_path = Paths.get(path);
+        try
+        {
+            if (file == null)
+            {
+                BasicFileAttributes attributes = Files.readAttributes(file_path, BasicFileAttributes.class);
+                if (attributes.isDirectory() && LISTING)
+                {
+                    setListing(file_path, key);
+                    return;
+                }
+                if (!attributes.isRegularFile())
+                    throw new FileNotFoundException(path);
+                file = XserverFile.of(file_path, attributes);
+            }
+            XserverFile gzip_source = gzip && file.size >= GZIP_MIN && compressible(file.content_type)
+                    ? gzipSource(file, key) : null;
+            if (gzip_source != null)
+                content_encoding = "gzip";
+            if (notModified(file))
+                return;
+            file_info = file;
+            content_type = file.content_type;
+
+            // partial content is always streamed from the file
+            int range = parser.field("Range");
+            if (range != -1 && ifRange(file))
+            {
+                ranges = parseRanges(parser.value(range), file.size);
+                if (ranges != null && ranges.length == 0)
+                {
+                    notSatisfiable(file.size);
+                    return;
+                }
+                if (ranges != null)
+                {
+                    file_channel = FileChannel.open(file_path);
+                    setRanges(file.size);
+                    return;
+                }
+            }
+
+            if (gzip_source != null)
+            {
+                setGzip(gzip_source, cache_key, cache_stamp);
+                return;
+            }
+
+            if (cache != null && file.size <= cache.max_entry)
+            {
+                body = Files.readAllBytes(file_path);
+                content_length = body.length;
+                if (keep_alive) // the cache only holds keep-alive responses
+                {
+                    cached = encodeResponse();
+                    cache.put(cache_key, file, cached, cache_stamp);
+                }
+                return;
+            }
+
+            file_channel = FileChannel.open(file_path);
+            content_length = file_channel.size();
+            body = null;
+        } catch (IOException e)
+        {
+            closeFile();
+            content_type = null;
+            content_encoding = null;
+            file_info = null;
+            setBody(message404());
+            response_ok = 404;
+        }
+    }
+
+    // conditional GET, true if the client's copy is current and a 304 without body has been set up
+    boolean notModified(XserverFile file)
+    {
+        // If-None-Match decides when present, If-Modified-Since is only looked at without it
+        boolean match;
+        int f = parser.field("If-None-Match");
+        if (f != -1) // only the representation chosen for this request, as the ETag line sends it
+            match = etagMatches(parser.value(f), content_encoding != null ? file.gzip_etag : file.etag);
+        else if ((f = parser.field("If-Modified-Since")) != -1)
+            match = parser.valueIs(f, file.last_modified) // clients echo our Last-Modified, no parsing needed
+                    || file.mtime / 1000 <= XserverFile.parseDate(parser.value(f)) / 1000;
+        else
+            return false;
+        if (!match)
+            return false;
+
+        file_info = file;
+        response_ok = 304;
+        body = null;
+        content_length = 0;
+        return true;
+    }
+
+    // the directory's entries as an HTML page, streamed while the directory is read
+    void setListing(Path dir, String key)
+    {
+        String base = key.endsWith("/") ? key : key + "/";
+        content_type = "text/html; charset=utf-8";
+        body = null;
+        content_length = 0;
+        stream_body = new XserverListing(dir, base);
+    }
+
+    // Accept-Encoding lists gzip and does not refuse it with q=0
+    boolean acceptsGzip()
+    {
+        int f = parser.field("Accept-Encoding");
+        if (f == -1)
+            return false;
+        for (String coding : parser.value(f).split(","))
+        {
+            String[] params = coding.split(";");
+            if (!params[0].trim().equalsIgnoreCase("gzip"))
+                continue;
+            for (int i = 1; i < params.length; i++)
+            {
+                String param = params[i].trim();
+                if (param.matches("q=0(\\.0*)?"))
+                    return false;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    static boolean compressible(String content_type)
+    {
+        return content_type.startsWith("text/") || content_type.contains("json") || content_type.contains("xml")
+                || content_type.contains("javascript");
+    }
+
+    // what the gzip body is made from: a .gz sibling not older than the file, or the file itself if it is small
+    // enough to be compressed here, null when neither is possible
+    XserverFile gzipSource(XserverFile file, String key)
+    {
+        XserverFile sibling = null;
+        if (index != null)
+            sibling = index.get(key + ".gz");
+        else
+            try
+            {
+                Path sibling_path = Paths.get(file.path + ".gz");
+                BasicFileAttributes attributes = Files.readAttributes(sibling_path, BasicFileAttributes.class);
+                if (attributes.isRegularFile())
+                    sibling = XserverFile.of(sibling_path, attributes);
+            } catch (IOException ignored) {}
+        if (sibling != null && sibling.mtime >= file.mtime)
+            return sibling;
+        return file.size <= GZIP_MAX ? file : null;
+    }
+
+    // compressed body, compressed once per file version when the cache is on
+    void setGzip(XserverFile source, String cache_key, long cache_stamp) throws IOException
+    {
+        if (source != file_info) // pre-compressed
+        {
+            if (cache == null || source.size > cache.max_entry)
+            {
+                file_channel = FileChannel.open(source.path);
+                content_length = file_channel.size();
+                body = null;
+                return;
+            }
+            body = Files.readAllBytes(source.path);
+        }
+        else
+        {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream((int) (source.size / 4) + 64);
+            try (GZIPOutputStream out = new GZIPOutputStream(compressed, 8192))
+            {
+                out.write(Files.readAllBytes(source.path));
+            }
+            body = compressed.toByteArray();
+        }
+        content_length = body.length;
+        if (cache != null && keep_alive)
+        {
+            cached = encodeResponse();
+            cache.put(cache_key + GZIP_VARIANT, file_info, cached, cache_stamp);
+        }
+    }
+
+    // If-Range: ranges only apply while the client's copy is current, otherwise the whole file is sent
+    boolean ifRange(XserverFile file)
+    {
+        int f = parser.field("If-Range");
+        return f == -1 || parser.valueIs(f, file.etag) || parser.valueIs(f, file.last_modified);
+    }
+
+    // satisfiable ranges of a Range value, null if the header is to be ignored, empty if none can be satisfied
+    static long[] parseRanges(String value, long size)
+    {
+        if (!value.startsWith("bytes="))
+            return null;
+        String[] specs = value.substring(6).split(",");
+        if (specs.length > MAX_RANGES)
+            return null;
+        long[] ranges = new long[2 * specs.length];
+        int n = 0;
+        try
+        {
+            for (String spec : specs)
+            {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                if (dash == -1)
+                    return null;
+                String first = spec.substring(0, dash);
+                String last = spec.substring(dash + 1);
+                long start;
+                long end;
+                if (first.isEmpty()) // suffix: the last n bytes
+                {
+                    start = Math.max(size - Long.parseLong(last), 0);
+                    end = size;
+                }
+                else
+                {
+                    start = Long.parseLong(first);
+                    end = last.isEmpty() ? size : Long.parseLong(last) + 1;
+                    if (end <= start && !last.isEmpty()) // last before first, invalid
+                        return null;
+                    end = Math.min(end, size);
+                }
+                if (start < 0)
+                    return null;
+                if (start >= size) // unsatisfiable, the others may still be
+                    continue;
+                ranges[n++] = start;
+                ranges[n++] = end;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return Arrays.copyOf(ranges, n);
+    }
+
+    // 206, one range is sent as it is, several as multipart/byteranges
+    void setRanges(long size)
+    {
+        response_ok = 206;
+        range_size = size;
+        body = null;
+        content_length = 0;
+        for (int i = 0; i < ranges.length; i += 2)
+            content_length += ranges[i + 1] - ranges[i];
+        if (ranges.length > 2)
+        {
+            content_type = "multipart/byteranges; boundary=" + BOUNDARY;
+            for (int i = 0; i < ranges.length; i += 2)
+                content_length += partHead(i).length();
+            content_length += multipartEnd().length();
+        }
+    }
+
+    void notSatisfiable(long size)
+    {
+        ranges = null;
+        file_info = null;
+        content_type = null;
+        range_size = size;
+        setBody(message416());
+        response_ok = 416;
+    }
+
+    // head of the part of range i in a multipart/byteranges body
+    String partHead(int i)
+    {
+        return "\r\n--" + BOUNDARY + "\r\n" +
+                "Content-Type: " + file_info.content_type + "\r\n" +
+                "Content-Range: bytes " + ranges[i] + "-" + (ranges[i + 1] - 1) + "/" + range_size + "\r\n\r\n";
+    }
+
+    static String multipartEnd()
+    {
+        return "\r\n--" + BOUNDARY + "--\r\n";
+    }
+
+    // weak comparison against a list of entity tags or *
+    static boolean etagMatches(String list, String etag)
+    {
+        for (String tag : list.split(","))
+        {
+            tag = tag.trim();
+            if (tag.startsWith("W/"))
+                tag = tag.substring(2);
+            if (tag.equals("*") || tag.equals(etag))
+                return true;
+        }
+        return false;
+    }
+
+    void setBody(String message)
+    {
+        body = message.getBytes(StandardCharsets.UTF_8);
+        content_length = body.length;
+    }
+
+    // the head of the current response, copied together from pre-encoded parts in the reusable buffer,
+    // without the Date for the cache, it is added whenever the cached response is sent
+    void encodeHead(int response_ok, boolean date)
+    {
+        head.reset().put(XserverHead.status(response_ok));
+        if (date)
+            head.put(XserverHead.date);
+        if (!keep_alive)
+            head.put(XserverHead.CONNECTION_CLOSE);
+
+        if (file_info != null)
+        {
+            head.line(XserverHead.ETAG, content_encoding != null ? file_info.gzip_etag : file_info.etag);
+            head.line(XserverHead.LAST_MODIFIED, file_info.last_modified);
+            if (GZIP && compressible(file_info.content_type))
+                head.put(XserverHead.VARY_ENCODING);
+        }
+        if (content_encoding != null && response_ok == 200)
+            head.put(XserverHead.ENCODING_GZIP);
+        if (file_info != null && response_ok == 200)
+            head.put(XserverHead.ACCEPT_RANGES);
+        if (response_ok == 206 && ranges.length == 2)
+            head.put(XserverHead.CONTENT_RANGE).put(ranges[0]).put('-').put(ranges[1] - 1).put('/').put(range_size)
+                .put(XserverHead.CRLF);
+        if (response_ok == 416)
+            head.put(XserverHead.CONTENT_RANGE).put("*/").put(range_size).put(XserverHead.CRLF);
+        if (response_ok == 429)
+            head.line(XserverHead.RETRY_AFTER, retry_after);
+        if (response_ok != 304) // a 304 has no body, its headers describe the client's copy
+        {
+            if (content_type != null)
+                head.line(XserverHead.CONTENT_TYPE, content_type);
+            if (stream_body != null)
+                head.put(XserverHead.CHUNKED);
+            else
+                head.line(XserverHead.CONTENT_LENGTH, content_length);
+        }
+        head.put(XserverHead.CRLF);
+    }
+
+    // head and in-memory body as one array, the form kept by the cache
+    byte[] encodeResponse()
+    {
+        encodeHead(response_ok, false);
+        return head.toArray(body);
+    }
+
+    // a cached response as it goes out: the current Date (and Connection: close) after the status line
+    // shared, so it is sliced around the per response headers as in writeResponse, nothing is copied
+    ByteBuffer[] cachedResponse()
+    {
+        int status_end = XserverHead.statusEnd(cached);
+        ByteBuffer status = ByteBuffer.wrap(cached, 0, status_end);
+        ByteBuffer date = ByteBuffer.wrap(XserverHead.date);
+        ByteBuffer rest = ByteBuffer.wrap(cached, status_end, cached.length - status_end);
+        if (keep_alive)
+            return new ByteBuffer[] {status, date, rest};
+        return new ByteBuffer[] {status, date, ByteBuffer.wrap(XserverHead.CONNECTION_CLOSE), rest};
+    }
+
+    void writeResponse(int response_ok)
+    {
+        if (cached != null)
+        {
+            // shared, so the per response headers go in between, nothing is copied
+            int status_end = XserverHead.statusEnd(cached);
+            byte[] date = XserverHead.date;
+            writer.write(cached, 0, status_end);
+            writer.write(date, 0, date.length);
+            bytes_sent = cached.length + date.length;
+            if (!keep_alive)
+            {
+                writer.write(XserverHead.CONNECTION_CLOSE, 0, XserverHead.CONNECTION_CLOSE.length);
+                bytes_sent += XserverHead.CONNECTION_CLOSE.length;
+            }
+            writer.write(cached, status_end, cached.length - status_end);
+            flush();
+            return;
+        }
+
+        encodeHead(response_ok, true);
+        bytes_sent = head.length + content_length;
+        writer.write(head.buf, 0, head.length);
+        if (stream_body != null)
+        {
+            writeStream();
+            return;
+        }
+        if (body != null)
+            writer.write(body, 0, body.length);
+        if (file_channel != null)
+            writer.flush();
+        else
+            flush();
+
+        // detached processors leave the file to the event loop
+        if (file_channel != null && socket != null)
+            sendFile();
+    }
+
+    // produce the streamed body into the writer, chunk by chunk
+    void writeStream()
+    {
+        if (chunked == null)
+            chunked = new XserverChunkedOutput();
+        chunked.reset(writer);
+        try
+        {
+            stream_body.writeTo(chunked);
+            chunked.finish();
+        } catch (IOException e) {
+            debug("Failed to stream body: " + e.getMessage());
+            keep_alive = false; // the body is cut short, the connection cannot be reused
+        }
+        stream_body = null;
+        bytes_sent += chunked.written;
+        flush();
+    }
+
+    // stream the file (or its ranges) straight to the socket, sendfile when the socket has a channel
+    void sendFile()
+    {
+        try
+        {
+            WritableByteChannel out = socket.getChannel();
+            if (out == null)
+                out = Channels.newChannel(socket.getOutputStream());
+            if (ranges == null)
+                transfer(out, 0, content_length);
+            else
+            {
+                for (int i = 0; i < ranges.length; i += 2)
+                {
+                    if (ranges.length > 2)
+                    {
+                        writer.print(partHead(i));
+                        writer.flush();
+                    }
+                    transfer(out, ranges[i], ranges[i + 1]);
+                }
+                if (ranges.length > 2)
+                {
+                    writer.print(multipartEnd());
+                    flush();
+                }
+            }
+        } catch (IOException e) {
+            debug("Failed to send file: " + e.getMessage());
+        }
+        closeFile();
+    }
+
+    void transfer(WritableByteChannel out, long position, long end) throws IOException
+    {
+        while (position < end)
+        {
+            long n = file_channel.transferTo(position, end - position, out);
+            if (n <= 0) // file shrunk under us
+                break;
+            position += n;
+        }
+    }
+
+    // a pipelined request already complete in read_buf gets its response in the same write, anything else
+    // is flushed, the next read may block
+    void flush()
+    {
+        if (reader != null && keep_alive && parser.end != -1 && XserverRequestParser.headEnd(read_buf.array(),
+                parser.end, read_buf.arrayOffset() + read_buf.limit()) != -1)
+            return;
+        writer.flush();
+    }
+
+    void closeFile()
+    {
+        if (file_channel == null)
+            return;
+        try {
+            file_channel.close();
+        } catch (IOException ignored) {}
+        file_channel = null;
+    }
+
+    // start draining, idle connections are closed right away, returns how many
+    static int drainIdle()
+    {
+        draining = true;
+        int closed = 0;
+        for (XserverProcessor processor : active)
+            if (processor.idle)
+            {
+                try {
+                    processor.socket.shutdownInput(); // the blocked read sees the end of the stream
+                } catch (IOException ignored) {}
+                closed++;
+            }
+        return closed;
+    }
+
+    // close every connection still being served, returns how many
+    static int closeAll()
+    {
+        int closed = 0;
+        for (XserverProcessor processor : active)
+        {
+            Xserver.closeQuietly(processor.socket);
+            closed++;
+        }
+        return closed;
+    }
+
+    void closeConnection()
+    {
+        try
+        {
+            writer.flush(); // the last responses may still be buffered
+            socket.close();
+            reader.close();
+            writer.close();
+            if (file_reader != null)
+                file_reader.close();
+            closeFile();
+            if (XserverLimiter.limiter != null)
+                XserverLimiter.limiter.disconnect(client);
+            debug("Connection Closed");
+        } catch (IOException e) {
+            error("Failed to close connection", e.getMessage());
+        }
+    }
+
+    //
+    // MACROS
+    //
+
+    static String message400() {
+        return "Sorry, bad request.\r\n";
+    }
+
+    static String message404() {
+        return "Sorry, not found.\r\n";
+    }
+
+    static String message503() {
+        return "Sorry, server is busy.\r\n";
+    }
+
+    static String message416() {
+        return "Sorry, requested range not satisfiable.\r\n";
+    }
+
+    static String message429() {
+        return "Sorry, too many requests.\r\n";
+    }
+
+    static String message431() {
+        return "Sorry, request header too large.\r\n";
+    }
+
+    static String messageIndex() {
+        return "Welcome to my not-page!\r\n";
+    }
+
+    // sleep in ms
+    static void sleep(int milliseconds) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(milliseconds);
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    // methods for handling errors, because I'm lazy to type it out each time
+    static void error(String err_msg) {
+        System.err.println("Error: " + err_msg);
+        Xserver.exiting = true;
+        System.exit(1);
+    }
+
+    // overriding for the case of caught exception
+    static void error(String err_msg, String excep_msg) {
+        System.err.println("Error: " + err_msg);
+        System.err.println("This error was caused by the following exception:");
+        System.err.println(excep_msg);
+        Xserver.exiting = true;
+        System.exit(1);
+    }
+
+    // debug method
+    static void debug(String msg)
+    {
+        if (Xserver.DEBUG)
+            System.out.println(msg);
+    }
+}
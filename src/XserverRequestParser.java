@@ -0,0 +1,289 @@
+/*
+*       XServerRequestParser - Incremental byte level parser of HTTP request heads
+*
+*       Architecture:
+*       * one parser belongs to one connection and is reused for all of its requests
+*       * it works directly on the connection's heap ByteBuffer: parse() looks for the end of the head
+*           in the bytes between position and limit, continuing where the previous call stopped,
+*           and once the head is complete it records the request line and the header fields as offsets
+*       * nothing is allocated per request - method, path, version, field names and values are slices
+*           of the buffer, compared in place; a String is only made when the caller asks for one
+*       * heads longer than MAX_HEADER or with more than MAX_FIELDS fields are rejected as soon as that
+*           is known, without waiting for the rest of the head
+*       * decodePath() turns a target into a file path: the query is cut off and %XX escapes are decoded
+*           as UTF-8, an invalid escape or UTF-8 sequence, a decoded control character or a name the file system
+*           cannot hold rejects the request
+*
+*       Configuration (system properties):
+*           xserver.max_header      largest accepted request head in bytes (default 8192)
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+
+
+public class XserverRequestParser
+{
+    static int MAX_HEADER = Integer.getInteger("xserver.max_header", 8192);
+    static final int MAX_FIELDS = 64;
+
+    // results of parse()
+    static final int INCOMPLETE = 0;
+    static final int COMPLETE = 1;
+    static final int TOO_LARGE = 2;
+    static final int MALFORMED = 3;
+
+    byte[] data;        // backing array of the parsed buffer
+    int start = -1;     // offset of the request head in data
+    int end;            // offset just past the empty line
+    int scanned;        // bytes after start already searched for the empty line
+
+    int method_start, method_end;
+    int path_start, path_end;
+    int version_start, version_end;
+    int field_cnt;
+    int[] name_start = new int[MAX_FIELDS];
+    int[] name_end = new int[MAX_FIELDS];
+    int[] value_start = new int[MAX_FIELDS];
+    int[] value_end = new int[MAX_FIELDS];
+
+    // parse the head starting at the buffer's position, the buffer is not modified
+    int parse(ByteBuffer buf)
+    {
+        int from = buf.arrayOffset() + buf.position();
+        int limit = buf.arrayOffset() + buf.limit();
+        if (buf.array() != data || from != start) // new request or the buffer was compacted
+        {
+            data = buf.array();
+            start = from;
+            scanned = 0;
+        }
+
+        // overlap the previous call by the length of the terminator
+        end = headEnd(data, Math.max(start, start + scanned - 2), limit);
+        if (end == -1)
+        {
+            scanned = limit - start;
+            return scanned >= MAX_HEADER ? TOO_LARGE : INCOMPLETE;
+        }
+        if (end - start > MAX_HEADER)
+            return TOO_LARGE;
+        return parseLines();
+    }
+
+    // offset just past the first LF (CR) LF in data[from, limit), -1 if the head is not complete
+    static int headEnd(byte[] data, int from, int limit)
+    {
+        for (int i = from; i < limit; i++)
+        {
+            if (data[i] != '\n')
+                continue;
+            if (i + 1 < limit && data[i + 1] == '\n')
+                return i + 2;
+            if (i + 2 < limit && data[i + 1] == '\r' && data[i + 2] == '\n')
+                return i + 3;
+        }
+        return -1;
+    }
+
+    // move the buffer past the parsed head, the next parse() starts with the following request
+    void consume(ByteBuffer buf)
+    {
+        if (end == -1) // rejected before the end of the head, drop everything
+            buf.position(buf.limit());
+        else
+            buf.position(end - buf.arrayOffset());
+        start = -1;
+    }
+
+    int parseLines()
+    {
+        // request line: method SP path SP version
+        int i = start;
+        method_start = i;
+        while (i < end && data[i] != ' ' && data[i] != '\r' && data[i] != '\n')
+            i++;
+        method_end = i;
+        if (i >= end || data[i] != ' ')
+            return MALFORMED;
+        path_start = ++i;
+        while (i < end && data[i] != ' ' && data[i] != '\r' && data[i] != '\n')
+        {
+            if (isControl(data[i])) // NUL and the other CTLs cannot be in a target, they break file paths
+                return MALFORMED;
+            i++;
+        }
+        path_end = i;
+        if (i >= end || data[i] != ' ')
+            return MALFORMED;
+        version_start = ++i;
+        while (i < end && data[i] != '\r' && data[i] != '\n')
+            i++;
+        version_end = i;
+        if (method_start == method_end || path_start == path_end || version_start == version_end)
+            return MALFORMED;
+        i = nextLine(i);
+
+        // fields: name ":" OWS value OWS, until the empty line
+        field_cnt = 0;
+        while (i < end && data[i] != '\r' && data[i] != '\n')
+        {
+            if (field_cnt == MAX_FIELDS)
+                return TOO_LARGE;
+            name_start[field_cnt] = i;
+            while (i < end && data[i] != ':' && data[i] != '\r' && data[i] != '\n')
+                i++;
+            if (i >= end || data[i] != ':' || i == name_start[field_cnt])
+                return MALFORMED;
+            name_end[field_cnt] = i++;
+
+            while (i < end && (data[i] == ' ' || data[i] == '\t'))
+                i++;
+            value_start[field_cnt] = i;
+            while (i < end && data[i] != '\r' && data[i] != '\n')
+                i++;
+            int value_last = i;
+            while (value_last > value_start[field_cnt] && (data[value_last - 1] == ' ' || data[value_last - 1] == '\t'))
+                value_last--;
+            value_end[field_cnt] = value_last;
+            field_cnt++;
+            i = nextLine(i);
+        }
+        return COMPLETE;
+    }
+
+    static boolean isControl(byte b)
+    {
+        return (b >= 0 && b < 0x20) || b == 0x7f;
+    }
+
+    // the path of a target (a path() string), null if it cannot name a file
+    static String decodePath(String target)
+    {
+        int query = target.indexOf('?');
+        String path = query < 0 ? target : target.substring(0, query);
+        boolean plain = path.indexOf('%') < 0;
+        for (int i = 0; plain && i < path.length(); i++)
+            plain = path.charAt(i) < 0x80;
+        if (plain) // nothing to decode, the common case
+            return path;
+
+        // path() maps every byte to one char, so raw UTF-8 bytes are decoded along with the escaped ones
+        byte[] bytes = new byte[path.length()];
+        int n = 0;
+        for (int i = 0; i < path.length(); i++)
+        {
+            char c = path.charAt(i);
+            if (c == '%')
+            {
+                int hi = i + 2 < path.length() ? Character.digit(path.charAt(i + 1), 16) : -1;
+                int lo = i + 2 < path.length() ? Character.digit(path.charAt(i + 2), 16) : -1;
+                if (hi < 0 || lo < 0)
+                    return null;
+                bytes[n] = (byte) (hi << 4 | lo);
+                i += 2;
+            }
+            else
+                bytes[n] = (byte) c;
+            if (isControl(bytes[n++]))
+                return null;
+        }
+        try {
+            String decoded = StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(bytes, 0, n)).toString();
+            Paths.get(decoded); // a name the file system cannot hold (e.g. non-ASCII in a POSIX locale)
+            return decoded;
+        } catch (CharacterCodingException | InvalidPathException e) {
+            return null;
+        }
+    }
+
+    // index of the first byte after the line ending at i
+    int nextLine(int i)
+    {
+        if (i < end && data[i] == '\r')
+            i++;
+        if (i < end && data[i] == '\n')
+            i++;
+        return i;
+    }
+
+    //
+    // ACCESSORS
+    //
+
+    boolean methodIs(String method)
+    {
+        return equals(method_start, method_end, method, false);
+    }
+
+    String method()
+    {
+        return new String(data, method_start, method_end - method_start, StandardCharsets.ISO_8859_1);
+    }
+
+    boolean versionIs(String version)
+    {
+        return equals(version_start, version_end, version, false);
+    }
+
+    boolean pathStartsWith(char c)
+    {
+        return data[path_start] == c;
+    }
+
+    // allocates, the path is needed as a String for the file lookup
+    String path()
+    {
+        return new String(data, path_start, path_end - path_start, StandardCharsets.ISO_8859_1);
+    }
+
+    // index of the field with the given name (case insensitive), -1 if there is none
+    int field(String name)
+    {
+        for (int f = 0; f < field_cnt; f++)
+            if (equals(name_start[f], name_end[f], name, true))
+                return f;
+        return -1;
+    }
+
+    boolean valueIs(int f, String value)
+    {
+        return equals(value_start[f], value_end[f], value, true);
+    }
+
+    boolean valueEmpty(int f)
+    {
+        return value_start[f] == value_end[f];
+    }
+
+    String value(int f)
+    {
+        return new String(data, value_start[f], value_end[f] - value_start[f], StandardCharsets.ISO_8859_1);
+    }
+
+    // the raw head, for debugging
+    String header()
+    {
+        return new String(data, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    // compare a slice of the buffer with an ASCII string
+    boolean equals(int from, int to, String s, boolean ignore_case)
+    {
+        if (to - from != s.length())
+            return false;
+        for (int i = 0; i < s.length(); i++)
+        {
+            int a = data[from + i];
+            int b = s.charAt(i);
+            if (a == b)
+                continue;
+            if (!ignore_case || (a | 0x20) != (b | 0x20) || (a | 0x20) < 'a' || (a | 0x20) > 'z')
+                return false;
+        }
+        return true;
+    }
+}
@@ -1,13 +1,17 @@
 import java.io.*;
-import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 public class Xurl
 {
     static boolean DEBUG = false;
 
+    // set on threads where a failed download must not end the process, error() throws XurlException there
+    static final ThreadLocal<Boolean> THROW_ERRORS = ThreadLocal.withInitial(() -> false);
+
     // url stuff
     String req_url;
     String req_protocol;
@@ -24,24 +28,31 @@ public class Xurl
     // file stuff
     File output_file;
     String req_filename;
-    String req_file;
+    XurlOutput output;
+    byte[] body_buf = new byte[XurlInput.BUFFER]; // the body passes through here on its way to the file
+    long body_length;
     List<String> req_header;
-    BufferedWriter file_writer;
-    int content_length;
+    long content_length;
+    String content_type;
     boolean chunked_encoding;
 
     // connection stuff
+    XurlConnection xurl_conn;
     Socket xurl_socket;
     PrintStream xurl_writer;
-    BufferedReader xurl_reader;
+    XurlInput xurl_reader;
     boolean conn_open = false;
+    boolean keep_alive = false; // the connection can serve another request after this response
     Err_code server_response;
+    int status_code;
 
     // flag to pass buffer or not
     boolean PARSE_BUFFER = false;
+    boolean read_error_body = false;
+    boolean more_requests = false; // more requests follow on the connection, keep it open without the pool
 
     private enum Err_code {
-        INFO, OK, REDIRECT, CLIENT_ERR, SERVER_ERR
+        INFO, OK, REDIRECT, NOT_MODIFIED, CLIENT_ERR, SERVER_ERR
     }
 
     //
@@ -67,6 +78,18 @@ public class Xurl
         xurl.doXurl(url, null, null);
     }
 
+    // several downloads, those of one host pipelined on one connection, the results in the order of urls
+    static public List<XurlResponse> downloadBatch(List<String> urls)
+    {
+        return XurlBatch.download(urls);
+    }
+
+    // the same download without a thread of its own, many of them run at once on the NIO event loop
+    static public CompletableFuture<XurlResponse> downloadAsync(String url)
+    {
+        return XurlNio.fetch(url);
+    }
+
     //
     // MAIN FUNCTIONS
     //
@@ -114,13 +137,8 @@ public class Xurl
         validateURL();
         openConnection();
         do {downloadFile();} while (server_response == Err_code.REDIRECT);
-        if(server_response == Err_code.OK)
-        {
-            saveFile();
-            if (PARSE_BUFFER)
-            DocumentProcessing.parseBuffer(req_file);
-        }
-        else
+        // the file is saved and parsed while it downloads
+        if(server_response != Err_code.OK)
             error("Could not retrieve file: " + req_header.get(0));
         closeConnection();
     }
@@ -173,50 +191,55 @@ public class Xurl
             port = req_port;
         }
 
+        // a warm connection from the pool when there is one
         try
         {
-            xurl_socket = new Socket();
-            xurl_socket.connect(new InetSocketAddress(host, port), timeout); // connection timeout
-            xurl_socket.setSoTimeout(timeout); // download timeout
-            debug("Connected to " + host + ":" + port);
+            if (XurlPool.pool != null)
+                xurl_conn = XurlPool.pool.acquire(host, port, timeout);
+            else
+                xurl_conn = new XurlConnection(null, host, port, timeout);
         }
         catch (IOException e)
         {
             error("Failed to open connection at " + host + ":" + port, e.getMessage());
         }
         conn_open = true;
+        if (xurl_conn.requests > 0)
+            debug("Reusing connection to " + host + ":" + port);
 
-        try {
-            xurl_reader = new BufferedReader(new InputStreamReader(xurl_socket.getInputStream()));
-            xurl_writer = new PrintStream(xurl_socket.getOutputStream());
-        } catch (IOException e)
-        {
-            error("Failed to set up buffered reader/writer", e.getMessage());
-        }
-
+        xurl_socket = xurl_conn.socket;
+        xurl_reader = xurl_conn.reader;
+        xurl_writer = xurl_conn.writer;
         if (xurl_reader == null || xurl_writer == null)
             error("Failed to initialize reader/writer");
     }
 
     void downloadFile()
     {
-        String line;
-
         // send request
         sendHTTPRequest("GET");
 
+        readResponse(readStatusLine());
+    }
+
+    // the rest of a response whose status line was read, a batch reads its pipelined responses with it
+    void readResponse(String line)
+    {
         // download header
         req_header = new ArrayList<>();
         try
         {
-            for (int i = 0; ; i++)
+            while (true)
             {
-                line = xurl_reader.readLine();
                 debug(line);
                 req_header.add(line + "\r\n");
 
                 if(line.equals(""))
                     break;
+
+                line = xurl_reader.readLine();
+                if (line == null)
+                    error("Connection closed in the middle of the header");
             }
         } catch (IOException e)
         {
@@ -232,96 +255,116 @@ public class Xurl
         if(server_response == Err_code.REDIRECT)
             extractRedirectURL();
 
-        // download file
-        if (server_response == Err_code.OK)
+        // download file, or in a batch read past the body of a failed request to reach the next response
+        if (server_response == Err_code.OK || read_error_body)
         {
-            req_file = "";
+            body_length = 0;
+            if (server_response == Err_code.OK)
+                openFile();
+            else
+                output = new XurlOutput(OutputStream.nullOutputStream(), null);
 
+            boolean complete = false;
             try
             {
-                if (chunked_encoding)
+                if (read_error_body && (status_code == 204 || status_code == 304))
+                    debug("No body for " + status_code); // whatever the header says, the next response follows
+                else if (chunked_encoding)
                 {
                     int chunk_length = 0;
-                    int buff;
-                    char[] content;
-                    req_file = "";
 
                     while(true)
                     {
-                        // get chunk length
+                        // get chunk length, without any chunk extension
                         line = xurl_reader.readLine();
+                        if (line == null)
+                            error("Content reading interrupted too soon");
+                        int extension = line.indexOf(';');
                         try {
-                            chunk_length = Integer.parseInt(line.trim(), 16);
+                            chunk_length = Integer.parseInt((extension < 0 ? line : line.substring(0, extension)).trim(), 16);
                         } catch (NumberFormatException e) {
                             error("Non-numeric chunk", e.getMessage());
                         }
                         if (chunk_length == 0)
-                            break;
-
-                        // get chunk content
-                        content = new char[chunk_length];
-                        for(int i = 0; i < chunk_length; i++)
                         {
-                            buff = xurl_reader.read();
-                            if (buff == -1)
-                                error("Content reading interrupted too soon");
-                            content[i] = (char) buff;
+                            // skip the trailer, up to the empty line that ends the body
+                            while ((line = xurl_reader.readLine()) != null && !line.equals(""))
+                                debug(line);
+                            break;
                         }
 
-                        req_file += new String(content);
+                        // get chunk content
+                        copyBody(chunk_length);
 
                         // skip CRLF
-                        xurl_reader.read();
-                        xurl_reader.read();
+                        xurl_reader.readLine();
                     }
-                    debug(req_file);
-                    debug("file len: " + req_file.length());
                 }
                 else if (content_length == 0) // no content available
-                    error("No page content provided");
+                {
+                    if (!read_error_body) // in a batch an empty body is complete, the next response follows
+                        error("No page content provided");
+                }
                 else if (content_length == -1) // no Content-Length
                 {
                     debug("Downloading without CL");
-                    while (xurl_reader.ready())
-                    {
-                        line = xurl_reader.readLine();
-                        debug(line);
-                        req_file += (line + "\r\n");
-                    }
+                    keep_alive = false; // the body ends when the server closes the connection
+                    copyBodyToEnd();
                 }
                 else // Content-Length available
                 {
                     debug("Downloading using CL");
-                    char[] content = new char[content_length];
-                    int buff;
-                    for(int i = 0; i < content_length; i++)
-                    {
-                        buff = xurl_reader.read();
-                        if (buff == -1)
-                            error("Content reading interrupted too soon");
-                        content[i] = (char) buff;
-                    }
-                    req_file = new String(content);
-                    debug(req_file);
-                    debug("file len: " + req_file.length());
+                    copyBody(content_length);
                 }
+                debug("file len: " + body_length);
+                output.close();
+                complete = true;
+            } catch (EOFException e) {
+                error("Content reading interrupted too soon", e.getMessage());
             } catch (IOException e) {
                 error("Failed to read page", e.getMessage());
+            } finally {
+                if (!complete) // error() throws in a batch, the file must not stay open
+                    try {
+                        output.file.close();
+                    } catch (IOException ignored) {}
             }
         }
 
     }
 
-    void saveFile()
+    // pass length bytes of the body on to the output
+    void copyBody(long length) throws IOException
     {
-        try
+        while (length > 0)
         {
-            output_file = new File("./" + req_filename);
-            file_writer = new BufferedWriter(new FileWriter(output_file));
+            int n = xurl_reader.read(body_buf, 0, (int) Math.min(length, body_buf.length));
+            if (n < 0)
+                throw new EOFException("Connection closed " + length + " bytes before the end of the body");
+            output.write(body_buf, 0, n);
+            body_length += n;
+            length -= n;
+        }
+    }
 
-            file_writer.write(req_file);
+    // pass everything up to the end of the stream on to the output
+    void copyBodyToEnd() throws IOException
+    {
+        int n;
+        while ((n = xurl_reader.read(body_buf, 0, body_buf.length)) >= 0)
+        {
+            output.write(body_buf, 0, n);
+            body_length += n;
+        }
+    }
 
-            file_writer.close();
+    // the file the body is written to as it arrives, with the link parser behind it if the page is parsed
+    void openFile()
+    {
+        try
+        {
+            output_file = new File("./" + req_filename);
+            output = new XurlOutput(new FileOutputStream(output_file), PARSE_BUFFER ? charset() : null);
         }
         catch (IOException e)
         {
@@ -331,16 +374,20 @@ public class Xurl
 
     void closeConnection()
     {
-        if (conn_open)
+        if (!conn_open)
+            return;
+        conn_open = false;
+        if (keep_alive && XurlPool.pool != null)
         {
-            try {
-                xurl_socket.close();
-                xurl_writer.close();
-                xurl_reader.close();
-            } catch (IOException e) {
-                error("Failed to close connection", e.getMessage());
-            }
+            xurl_conn.requests++;
+            XurlPool.pool.release(xurl_conn);
+            debug("Connection returned to the pool");
+            return;
         }
+        if (XurlPool.pool != null)
+            XurlPool.pool.discard(xurl_conn);
+        else
+            xurl_conn.close();
         debug("Connection closed");
     }
 
@@ -348,6 +395,30 @@ public class Xurl
     // FUNCTIONS
     //
 
+    // the first line of the response, a pooled connection the server has closed meanwhile is replaced once
+    String readStatusLine()
+    {
+        String line = null;
+        try {
+            line = xurl_reader.readLine();
+        } catch (IOException e) {
+            if (xurl_conn.requests == 0)
+                error("Failed to read page", e.getMessage());
+        }
+        if (line == null && xurl_conn.requests > 0)
+        {
+            // nothing of the response arrived, so sending the GET again is safe
+            debug("Reused connection was closed by the server, retrying on a new one");
+            closeConnection();
+            openConnection();
+            sendHTTPRequest("GET");
+            return readStatusLine();
+        }
+        if (line == null)
+            error("Connection closed before the response");
+        return line;
+    }
+
     void analyzeHeader()
     {
         String[] split_string;
@@ -362,6 +433,7 @@ public class Xurl
                 error("Invalid server response");
             if (!Objects.equals(split_string[0].split("/")[0], req_protocol.toUpperCase()))
                 error("Invalid protocol in server response");
+            keep_alive = split_string[0].equals("HTTP/1.1"); // HTTP/1.0 closes unless asked otherwise
 
             // error code
             try
@@ -384,11 +456,16 @@ public class Xurl
                     if (split_string[0].equals("Content-Length"))
                         try
                         {
-                            content_length = Integer.parseInt((split_string[1].trim()));
+                            content_length = Long.parseLong((split_string[1].trim()));
                         } catch (NumberFormatException e)
                         {
                             error("Invalid Content-Length in response", e.getMessage());
                         }
+                    if (split_string[0].equalsIgnoreCase("Content-Type"))
+                        content_type = split_string[1].trim();
+                    if (split_string[0].equalsIgnoreCase("Connection") &&
+                            split_string[1].trim().equalsIgnoreCase("close"))
+                        keep_alive = false;
                     if (split_string[0].equals("Transfer-Encoding"))
                     {
                         split_string[1] = split_string[1].trim();
@@ -404,6 +481,7 @@ public class Xurl
             error("Failed to read content from server (content is null)");
 
         // save err_code
+        status_code = response;
         switch (response / 100)
         {
             case (1):
@@ -413,7 +491,8 @@ public class Xurl
                 server_response = Err_code.OK;
                 break;
             case (3):
-                server_response = Err_code.REDIRECT;
+                // 304 Not Modified has no Location to follow
+                server_response = response == 304 ? Err_code.NOT_MODIFIED : Err_code.REDIRECT;
                 break;
             case (4):
                 server_response = Err_code.CLIENT_ERR;
@@ -424,6 +503,22 @@ public class Xurl
         }
     }
 
+    // charset of the body from its Content-Type, UTF-8 when there is none
+    Charset charset()
+    {
+        int i = content_type == null ? -1 : content_type.toLowerCase().indexOf("charset=");
+        if (i >= 0)
+        {
+            String name = content_type.substring(i + 8).split(";")[0].trim().replace("\"", "");
+            try {
+                return Charset.forName(name);
+            } catch (IllegalArgumentException e) {
+                debug("Unknown charset " + name + ", using UTF-8");
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
     void extractRedirectURL()
     {
         error("Redirection unsupported at this time");
@@ -457,8 +552,10 @@ public class Xurl
                 debug(params[i]);
             }
         }
+        if (XurlPool.pool == null && !more_requests)
+            xurl_writer.println("Connection: close");
         xurl_writer.println("");
-        xurl_writer.println("");
+        xurl_writer.flush(); // the whole request in one write
     }
 
     // overriding for simplicity
@@ -474,6 +571,8 @@ public class Xurl
     // methods for handling errors, because I'm lazy to type it out each time
     static void error(String err_msg)
     {
+        if (THROW_ERRORS.get())
+            throw new XurlException(err_msg);
         System.err.println("Error: " + err_msg);
         System.exit(1);
     }
@@ -481,6 +580,8 @@ public class Xurl
     // overriding for the case of caught exception
     static void error(String err_msg, String excep_msg)
     {
+        if (THROW_ERRORS.get())
+            throw new XurlException(err_msg + ": " + excep_msg);
         System.err.println("Error: " + err_msg);
         System.err.println("This error was caused by the following exception:");
         System.err.println(excep_msg);
@@ -502,4 +603,3 @@ public class Xurl
                 System.out.print(msg);
     }
 }
-
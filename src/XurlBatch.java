@@ -0,0 +1,220 @@
+/*
+*       XurlBatch - Pipelined downloads of Xurl
+*
+*       Architecture:
+*       * class XurlBatch downloads the URLs of one host over one connection with HTTP/1.1 pipelining
+*           up to xurl.pipeline_depth requests go out back to back in a single write, the responses are read
+*           in order by Xurl.readResponse, and every response read lets the next request go out
+*           the batch pays a round trip per window of requests instead of one per file
+*           download() splits a list of URLs by host:port into one batch each, the results keep the order of the list
+*           without the pool (xurl.pool=false) only the last request of a batch asks the server to close
+*           a response of any status is read to its end, one without a body (204, 304, Content-Length 0) is complete
+*       * the requests are GETs, so whatever the server did not answer can be sent again:
+*           after a response announcing the close the rest goes out on a new connection,
+*           a connection that ends early is replaced and the unanswered requests are sent again,
+*           if it ended without answering any, pipelining is turned off for the batch, and only a single
+*           request left without an answer on a new connection fails
+*           a request whose response breaks off fails alone (its body may have been saved in part)
+*
+*       Configuration (system properties):
+*           xurl.pipeline_depth     requests sent ahead of their responses (default 8)
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+
+public class XurlBatch
+{
+    static int PIPELINE_DEPTH = Integer.getInteger("xurl.pipeline_depth", 8);
+
+    Xurl[] xurls;
+    XurlResponse[] results;
+    String host;
+    int port;
+    int timeout;
+    ArrayDeque<Integer> unsent = new ArrayDeque<>();
+    ArrayDeque<Integer> in_flight = new ArrayDeque<>(); // sent on the current connection, not answered yet
+    int depth = Math.max(PIPELINE_DEPTH, 1);
+
+    public XurlBatch(Xurl[] xurls, List<Integer> batch, XurlResponse[] results)
+    {
+        this.xurls = xurls;
+        this.results = results;
+        unsent.addAll(batch);
+        Xurl first = xurls[batch.get(0)];
+        host = first.req_host;
+        port = first.req_port;
+        timeout = first.timeout;
+    }
+
+    // download every url as Xurl.download does, a failed one is reported and its result is null
+    static List<XurlResponse> download(List<String> urls)
+    {
+        boolean throw_errors = Xurl.THROW_ERRORS.get();
+        Xurl.THROW_ERRORS.set(true); // a failed download fails alone
+        try
+        {
+            Xurl[] xurls = new Xurl[urls.size()];
+            XurlResponse[] results = new XurlResponse[urls.size()];
+            LinkedHashMap<String, List<Integer>> hosts = new LinkedHashMap<>();
+            for (int i = 0; i < xurls.length; i++)
+            {
+                Xurl xurl = new Xurl();
+                xurl.PARSE_BUFFER = true;
+                xurl.read_error_body = true; // the responses behind it are on the same connection
+                try {
+                    xurl.extractURL(urls.get(i));
+                    xurl.validateURL();
+                } catch (XurlException | IllegalArgumentException e) {
+                    System.err.println("Error: " + urls.get(i) + ": " + e.getMessage());
+                    continue;
+                }
+                xurls[i] = xurl;
+                hosts.computeIfAbsent(xurl.req_host + ":" + xurl.req_port, k -> new ArrayList<>()).add(i);
+            }
+            for (List<Integer> batch : hosts.values())
+                new XurlBatch(xurls, batch, results).run();
+            return Arrays.asList(results);
+        }
+        finally
+        {
+            Xurl.THROW_ERRORS.set(throw_errors);
+        }
+    }
+
+    void run()
+    {
+        while (!unsent.isEmpty())
+        {
+            XurlConnection conn;
+            try
+            {
+                if (XurlPool.pool != null)
+                    conn = XurlPool.pool.acquire(host, port, timeout);
+                else
+                    conn = new XurlConnection(null, host, port, timeout);
+            }
+            catch (IOException e)
+            {
+                // nothing of this host can be downloaded
+                while (!unsent.isEmpty())
+                    fail(unsent.poll(), "Failed to open connection at " + host + ":" + port + ": " + e.getMessage());
+                return;
+            }
+            serve(conn);
+        }
+    }
+
+    // pipeline the unsent requests on conn until they are answered or the connection ends
+    void serve(XurlConnection conn)
+    {
+        int answered = 0;
+        boolean reused = conn.requests > 0;
+        try
+        {
+            send(conn);
+            while (!in_flight.isEmpty())
+            {
+                String line = conn.reader.readLine();
+                if (line == null)
+                    throw new EOFException("Connection closed before the response");
+
+                // the response has started, from here on it cannot be sent again
+                int i = in_flight.poll();
+                Xurl xurl = xurls[i];
+                xurl.xurl_conn = conn;
+                xurl.xurl_reader = conn.reader;
+                try {
+                    xurl.readResponse(line);
+                } catch (XurlException e) {
+                    fail(i, e.getMessage());
+                    end(conn, false);
+                    return;
+                }
+                results[i] = response(xurl);
+                conn.requests++;
+                answered++;
+                if (!xurl.keep_alive) // the server closes after this one
+                {
+                    end(conn, false);
+                    return;
+                }
+                send(conn);
+            }
+        }
+        catch (IOException e)
+        {
+            end(conn, false);
+            if (answered > 0 || reused) // the rest goes on a new connection
+                Xurl.debug("Connection closed after " + answered + " responses, sending the rest again");
+            else if (depth > 1)
+            {
+                Xurl.debug("No response to pipelined requests, going on one request at a time");
+                depth = 1;
+            }
+            else // a single request on a new connection got no answer
+                fail(unsent.poll(), e.getMessage());
+            return;
+        }
+        end(conn, true);
+    }
+
+    // fill the window, all new requests in a single write
+    void send(XurlConnection conn) throws IOException
+    {
+        if (in_flight.size() >= depth || unsent.isEmpty())
+            return;
+        ByteArrayOutputStream rendered = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(rendered);
+        while (in_flight.size() < depth && !unsent.isEmpty())
+        {
+            int i = unsent.poll();
+            xurls[i].xurl_writer = out;
+            xurls[i].more_requests = !unsent.isEmpty(); // without the pool only the last one asks to close
+            xurls[i].sendHTTPRequest("GET");
+            in_flight.add(i);
+        }
+        rendered.writeTo(conn.writer);
+        conn.writer.flush();
+        if (conn.writer.checkError()) // a PrintStream keeps its exceptions to itself
+            throw new IOException("Failed to send the requests");
+    }
+
+    // done with the connection, what it left unanswered goes back in front, in order
+    void end(XurlConnection conn, boolean reusable)
+    {
+        while (!in_flight.isEmpty())
+            unsent.addFirst(in_flight.pollLast());
+        if (XurlPool.pool == null)
+            conn.close();
+        else if (reusable)
+            XurlPool.pool.release(conn);
+        else
+            XurlPool.pool.discard(conn);
+    }
+
+    XurlResponse response(Xurl xurl)
+    {
+        XurlResponse response = new XurlResponse();
+        response.url = xurl.req_url;
+        response.status = xurl.status_code;
+        response.header = xurl.req_header;
+        response.body_length = xurl.body_length;
+        response.file = xurl.status_code / 100 == 2 ? xurl.output_file : null;
+        return response;
+    }
+
+    void fail(int i, String message)
+    {
+        System.err.println("Error: " + xurls[i].req_url + ": " + message);
+        results[i] = null;
+    }
+}
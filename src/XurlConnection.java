@@ -0,0 +1,82 @@
+/*
+*       XurlConnection - Connections of Xurl
+*
+*       Architecture:
+*       * class XurlConnection is one open connection with its reader and writer, which keep their buffers
+*           a connection that was idle for a while is checked before it is reused, a peer that closed it
+*           or sent something unasked is caught by a 1 ms read and the connection is dropped
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+
+class XurlConnection
+{
+    XurlHost host;      // null when not pooled
+    Socket socket;
+    XurlInput reader;
+    PrintStream writer;
+    long idle_since;    // System.nanoTime() when returned to the pool
+    int requests;       // responses completed on this connection
+
+    public XurlConnection(XurlHost host, String name, int port, int timeout) throws IOException
+    {
+        this.host = host;
+        socket = new Socket();
+        try
+        {
+            socket.connect(new InetSocketAddress(name, port), timeout); // connection timeout
+            socket.setSoTimeout(timeout); // download timeout
+            socket.setTcpNoDelay(true); // requests are flushed whole, do not wait for the previous ACK
+            reader = new XurlInput(socket.getInputStream());
+            writer = new PrintStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+        catch (IOException e)
+        {
+            close();
+            throw e;
+        }
+        Xurl.debug("Connected to " + name + ":" + port);
+    }
+
+    // whether an idle connection can take the next request
+    boolean alive()
+    {
+        if (socket.isClosed() || socket.isInputShutdown())
+            return false;
+        try
+        {
+            if (reader.buffered() > 0) // bytes nobody asked for, the connection is out of step
+                return false;
+            if (System.nanoTime() - idle_since < TimeUnit.MILLISECONDS.toNanos(XurlPool.VALIDATE_AFTER))
+                return true;
+            // the reader is empty, so the socket can be probed directly: it must have nothing to read, not even EOF
+            int timeout = socket.getSoTimeout();
+            socket.setSoTimeout(1);
+            try {
+                socket.getInputStream().read();
+                return false;
+            } catch (SocketTimeoutException e) {
+                socket.setSoTimeout(timeout);
+                return true;
+            }
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    void close()
+    {
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+}
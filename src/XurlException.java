@@ -0,0 +1,18 @@
+/*
+*       XurlException - Download errors of Xurl
+*
+*       Architecture:
+*       * class XurlException is what Xurl.error() throws instead of exiting, on the threads that set
+*           Xurl.THROW_ERRORS (the asynchronous and the batch downloads), so a failed download fails alone
+ */
+
+
+class XurlException extends RuntimeException
+{
+    private static final long serialVersionUID = 1L;
+
+    public XurlException(String message)
+    {
+        super(message);
+    }
+}
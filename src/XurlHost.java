@@ -0,0 +1,17 @@
+/*
+*       XurlHost - Per host state of XurlPool
+*
+*       Architecture:
+*       * class XurlHost is the state of one host: its idle connections and the count of all open ones,
+*           guarded by the XurlHost itself
+ */
+
+import java.util.ArrayDeque;
+
+
+class XurlHost
+{
+    ArrayDeque<XurlConnection> idle = new ArrayDeque<>(); // most recently returned first
+    int open;           // idle and in use
+    boolean removed;    // dropped from the pool by the evictor
+}
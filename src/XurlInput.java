@@ -0,0 +1,109 @@
+/*
+*       XurlInput - Byte level response reader of Xurl
+*
+*       Architecture:
+*       * class XurlInput reads a response straight from the socket's byte stream through one buffer,
+*           which belongs to the connection and is reused by every response it carries
+*           header lines are cut out of the buffer as ISO-8859-1 strings, bodies are copied out in bulk,
+*           and a read as large as the buffer goes to the socket directly, without the copy
+*           lengths (Content-Length, chunk sizes) are counted in bytes, the charset of a body is applied
+*           only by the code that needs its text
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+
+public class XurlInput
+{
+    static final int BUFFER = 16384;
+    static final int MAX_LINE = 65536;
+
+    InputStream in;
+    byte[] buf = new byte[BUFFER];
+    int pos = 0;
+    int limit = 0;
+
+    public XurlInput(InputStream in)
+    {
+        this.in = in;
+    }
+
+    // bytes read from the socket but not consumed yet
+    int buffered()
+    {
+        return limit - pos;
+    }
+
+    // a line without its CRLF (or bare LF), null at the end of the stream
+    String readLine() throws IOException
+    {
+        StringBuilder line = null; // only for a line that spans refills
+        while (true)
+        {
+            if (pos == limit && !fill())
+            {
+                if (line == null)
+                    return null;
+                return stripCR(line.toString()); // unterminated last line
+            }
+            int start = pos;
+            while (pos < limit && buf[pos] != '\n')
+                pos++;
+            if (pos < limit)
+            {
+                int end = pos++; // past the LF
+                if (line == null)
+                {
+                    if (end > start && buf[end - 1] == '\r')
+                        end--;
+                    return new String(buf, start, end - start, StandardCharsets.ISO_8859_1);
+                }
+                line.append(new String(buf, start, end - start, StandardCharsets.ISO_8859_1));
+                return stripCR(line.toString());
+            }
+            if (line == null)
+                line = new StringBuilder();
+            line.append(new String(buf, start, pos - start, StandardCharsets.ISO_8859_1));
+            if (line.length() > MAX_LINE)
+                throw new IOException("Line longer than " + MAX_LINE + " bytes");
+        }
+    }
+
+    // up to len bytes, -1 at the end of the stream
+    int read(byte[] b, int off, int len) throws IOException
+    {
+        if (pos == limit)
+        {
+            if (len >= buf.length) // nothing buffered, no need to copy through the buffer
+                return in.read(b, off, len);
+            if (!fill())
+                return -1;
+        }
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(buf, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    boolean fill() throws IOException
+    {
+        pos = 0;
+        limit = 0;
+        int n = in.read(buf, 0, buf.length);
+        if (n <= 0)
+            return false;
+        limit = n;
+        return true;
+    }
+
+    //
+    // MACROS
+    //
+
+    static String stripCR(String line)
+    {
+        return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+    }
+}
@@ -0,0 +1,760 @@
+/*
+*       XurlNio - Event loop engine of Xurl
+*
+*       Architecture:
+*       * class XurlNio is the asynchronous client behind Xurl.downloadAsync
+*           it starts the event loops on first use and hands the fetches out to them round robin
+*           a fetch is prepared by the calling thread: the URL is checked and resolved and the request is
+*           rendered by Xurl.sendHTTPRequest, so a loop never waits for a DNS lookup
+*           every fetch completes a CompletableFuture with an XurlResponse, or exceptionally with the error
+*           Xurl would have exited with - callbacks that are not *Async run on a worker thread
+*       * class XurlEventLoop multiplexes the connections of many fetches on a single Selector
+*           connections are kept per host:port as in XurlPool: at most xurl.max_per_host are open, fetches
+*           above it wait for one to be free, idle ones are reused and closed after xurl.idle_timeout
+*           an idle connection stays registered for reading, so a server closing it is noticed right away
+*           every 100 ms a sweep fails the fetches that made no progress within the Xurl timeout
+*       * class XurlNioConnection is one connection and the state machine of the fetch it serves:
+*           CONNECT, WRITE, HEAD, then BODY, or CHUNK_SIZE, CHUNK, CHUNK_END ... TRAILER, or TO_END
+*           header lines go to Xurl.analyzeHeader and the body of a 2xx response to the fetch's XurlNioSink
+*           as it arrives, so a fetch does what Xurl.download does
+*           a reused connection closed by the server before the response started is retried once on a new one
+*       * class XurlNioSink takes the file and the link parser off the loop: a worker thread opens the file,
+*           writes the body to an XurlOutput in order and completes the future, so a loop only reads sockets
+*           a connection stops reading while more than MAX_PENDING bytes of its body wait for the worker,
+*           a failed write or a bad file name fails the fetch and closes its connection
+*       * the result of a fetch is an XurlResponse, responses other than 2xx complete normally, without a file
+*
+*       Configuration (system properties):
+*           xurl.nio_loops          event loops of the asynchronous client (default 1)
+*           xurl.pool, xurl.max_per_host and xurl.idle_timeout apply as in XurlPool
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class XurlNio
+{
+    static int LOOPS = Integer.getInteger("xurl.nio_loops", 1);
+
+    static XurlEventLoop[] loops; // started by the first fetch
+    static ExecutorService workers; // write the bodies and complete the futures, see XurlNioSink
+    static AtomicInteger next = new AtomicInteger();
+
+    static synchronized XurlEventLoop[] loops()
+    {
+        if (loops == null)
+        {
+            AtomicInteger worker_cnt = new AtomicInteger();
+            workers = Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(() -> {
+                    Xurl.THROW_ERRORS.set(true); // a failed fetch fails its future, not the process
+                    task.run();
+                }, "xurl-nio-worker-" + worker_cnt.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+            XurlEventLoop[] started = new XurlEventLoop[Math.max(LOOPS, 1)];
+            for (int i = 0; i < started.length; i++)
+            {
+                try {
+                    started[i] = new XurlEventLoop();
+                } catch (IOException e) {
+                    Xurl.error("Failed to open selector", e.getMessage());
+                }
+                Thread thread = new Thread(started[i], "xurl-nio-" + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            loops = started;
+        }
+        return loops;
+    }
+
+    // download url on an event loop, saved and parsed as by Xurl.download
+    static CompletableFuture<XurlResponse> fetch(String url)
+    {
+        XurlNioFetch fetch;
+        boolean throw_errors = Xurl.THROW_ERRORS.get();
+        Xurl.THROW_ERRORS.set(true); // a bad URL fails its future
+        try {
+            fetch = new XurlNioFetch(url);
+        } catch (XurlException | IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(e);
+        } finally {
+            Xurl.THROW_ERRORS.set(throw_errors);
+        }
+        XurlEventLoop[] all = loops();
+        all[Math.floorMod(next.getAndIncrement(), all.length)].submit(fetch);
+        return fetch.future;
+    }
+}
+
+
+class XurlEventLoop implements Runnable
+{
+    static final int SWEEP_INTERVAL = 100;
+
+    Selector selector;
+    Queue<XurlNioFetch> submitted = new ConcurrentLinkedQueue<>();
+    Queue<XurlNioSink> resumed = new ConcurrentLinkedQueue<>(); // the worker caught up, or failed
+    HashMap<String, XurlNioHost> hosts = new HashMap<>(); // only used by the loop thread
+    long last_sweep = 0;
+    int opened = 0;
+    int reused = 0;
+
+    public XurlEventLoop() throws IOException
+    {
+        selector = Selector.open();
+    }
+
+    // called from any thread, the fetch is started by the loop itself
+    void submit(XurlNioFetch fetch)
+    {
+        submitted.add(fetch);
+        selector.wakeup();
+    }
+
+    // called by the worker of sink, its connection goes on reading, or fails, on the loop
+    void resume(XurlNioSink sink)
+    {
+        resumed.add(sink);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run()
+    {
+        Xurl.THROW_ERRORS.set(true); // a failed fetch fails its future, not the process
+        while (true)
+        {
+            try
+            {
+                selector.select(SWEEP_INTERVAL);
+            } catch (IOException e) {
+                Xurl.debug("Failed to select: " + e.getMessage());
+                continue;
+            }
+            XurlNioFetch fetch;
+            while ((fetch = submitted.poll()) != null)
+                dispatch(fetch);
+            XurlNioSink sink;
+            while ((sink = resumed.poll()) != null)
+            {
+                try {
+                    sink.conn.resume(sink);
+                } catch (IOException | RuntimeException e) {
+                    sink.conn.fail(e);
+                }
+            }
+            sweep();
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext())
+            {
+                SelectionKey key = it.next();
+                it.remove();
+                XurlNioConnection conn = (XurlNioConnection) key.attachment();
+                if (!key.isValid())
+                    continue;
+                try
+                {
+                    if (key.isConnectable())
+                        conn.onConnectable();
+                    else if (key.isWritable())
+                        conn.onWritable();
+                    else if (key.isReadable())
+                        conn.onReadable();
+                } catch (IOException | RuntimeException e) {
+                    conn.fail(e);
+                }
+            }
+        }
+    }
+
+    // an idle connection of the host, a new one below the cap, or a place in the host's queue
+    void dispatch(XurlNioFetch fetch)
+    {
+        XurlNioHost host = hosts.computeIfAbsent(fetch.host_key, XurlNioHost::new);
+        XurlNioConnection conn = fetch.retried ? null : host.idle.pollFirst(); // a retry gets a fresh one
+        if (conn != null)
+        {
+            reused++;
+            conn.start(fetch);
+        }
+        else if (host.open < XurlPool.MAX_PER_HOST)
+            connect(host, fetch);
+        else
+            host.waiting.add(fetch);
+    }
+
+    void connect(XurlNioHost host, XurlNioFetch fetch)
+    {
+        host.open++;
+        XurlNioConnection conn = new XurlNioConnection(this, host);
+        try
+        {
+            conn.open(fetch);
+            opened++;
+        } catch (IOException e) {
+            conn.fail(e);
+        }
+    }
+
+    // a connection done with its response, it serves the next waiting fetch or waits for one
+    void release(XurlNioConnection conn)
+    {
+        XurlNioFetch fetch = conn.host.waiting.poll();
+        if (fetch != null)
+        {
+            reused++;
+            conn.start(fetch);
+            return;
+        }
+        conn.idle();
+        conn.host.idle.addFirst(conn);
+    }
+
+    // a connection is gone, its slot goes to a waiting fetch
+    void closed(XurlNioConnection conn)
+    {
+        XurlNioHost host = conn.host;
+        host.open--;
+        host.idle.remove(conn);
+        XurlNioFetch fetch = host.waiting.poll();
+        if (fetch != null)
+            connect(host, fetch);
+        else if (host.open == 0)
+            hosts.remove(host.key);
+    }
+
+    // fail fetches without progress, close connections idle for too long
+    void sweep()
+    {
+        long now = System.currentTimeMillis();
+        if (now - last_sweep < SWEEP_INTERVAL)
+            return;
+        last_sweep = now;
+        ArrayList<XurlNioConnection> expired = new ArrayList<>(); // closing may register new keys
+        for (SelectionKey key : selector.keys())
+        {
+            XurlNioConnection conn = (XurlNioConnection) key.attachment();
+            int timeout = conn.fetch != null ? conn.fetch.xurl.timeout : XurlPool.IDLE_TIMEOUT;
+            // a connection that stopped reading waits for its worker, not for the server
+            if (key.isValid() && key.interestOps() != 0 && now - conn.last_active > timeout)
+                expired.add(conn);
+        }
+        for (XurlNioConnection conn : expired)
+            if (conn.fetch != null)
+                conn.fail(new SocketTimeoutException("No progress within " + conn.fetch.xurl.timeout + " ms"));
+            else
+                conn.close();
+    }
+}
+
+
+class XurlNioHost
+{
+    String key;
+    ArrayDeque<XurlNioConnection> idle = new ArrayDeque<>();    // most recently used first
+    ArrayDeque<XurlNioFetch> waiting = new ArrayDeque<>();      // fetches above the cap
+    int open = 0;
+
+    public XurlNioHost(String key)
+    {
+        this.key = key;
+    }
+}
+
+
+class XurlNioFetch
+{
+    String url;
+    Xurl xurl;              // the URL, the request and the parsed header, as in a blocking download
+    InetSocketAddress address;
+    String host_key;
+    ByteBuffer request;
+    boolean retried = false;
+    long body_length = 0;
+    CompletableFuture<XurlResponse> future = new CompletableFuture<>();
+    XurlNioSink sink = new XurlNioSink(this);
+
+    // errors of the URL are thrown as XurlException, see XurlNio.fetch
+    public XurlNioFetch(String url)
+    {
+        this.url = url;
+        xurl = new Xurl();
+        xurl.PARSE_BUFFER = true;
+        xurl.extractURL(url);
+        xurl.validateURL();
+        address = new InetSocketAddress(xurl.req_host, xurl.req_port);
+        if (address.isUnresolved())
+            Xurl.error("Unknown host " + xurl.req_host);
+        host_key = xurl.req_host + ":" + xurl.req_port;
+
+        // the request as the blocking client sends it
+        ByteArrayOutputStream rendered = new ByteArrayOutputStream();
+        xurl.xurl_writer = new PrintStream(rendered);
+        xurl.sendHTTPRequest("GET");
+        request = ByteBuffer.wrap(rendered.toByteArray());
+    }
+}
+
+
+class XurlNioConnection
+{
+    static final int CONNECT = 0;
+    static final int WRITE = 1;
+    static final int HEAD = 2;
+    static final int BODY = 3;
+    static final int CHUNK_SIZE = 4;
+    static final int CHUNK = 5;
+    static final int CHUNK_END = 6;
+    static final int TRAILER = 7;
+    static final int TO_END = 8;
+    static final int IDLE = 9;
+
+    XurlEventLoop loop;
+    XurlNioHost host;
+    SocketChannel channel;
+    SelectionKey key;
+    ByteBuffer in = ByteBuffer.allocate(XurlInput.BUFFER); // in write mode between reads
+    int state = CONNECT;
+    XurlNioFetch fetch;     // null while idle
+    boolean save;           // the body goes to the sink, else nowhere
+    long remaining;         // bytes left of the body or of the current chunk
+    boolean received;       // some of the current response arrived
+    int requests = 0;       // responses completed on this connection
+    long last_active;
+    boolean closed = false;
+
+    public XurlNioConnection(XurlEventLoop loop, XurlNioHost host)
+    {
+        this.loop = loop;
+        this.host = host;
+    }
+
+    void open(XurlNioFetch fetch) throws IOException
+    {
+        this.fetch = fetch;
+        last_active = System.currentTimeMillis();
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        key = channel.register(loop.selector, 0, this);
+        if (channel.connect(fetch.address))
+            start(fetch);
+        else
+            key.interestOps(SelectionKey.OP_CONNECT);
+    }
+
+    // send the request of fetch, on a new or an idle connection
+    void start(XurlNioFetch fetch)
+    {
+        this.fetch = fetch;
+        fetch.sink.conn = this;
+        fetch.request.rewind();
+        fetch.xurl.req_header = new ArrayList<>();
+        received = false;
+        state = WRITE;
+        last_active = System.currentTimeMillis();
+        key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    // between responses the connection only watches for the server closing it
+    void idle()
+    {
+        state = IDLE;
+        last_active = System.currentTimeMillis();
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    void onConnectable() throws IOException
+    {
+        if (channel.finishConnect())
+            start(fetch);
+    }
+
+    void onWritable() throws IOException
+    {
+        channel.write(fetch.request);
+        last_active = System.currentTimeMillis();
+        if (fetch.request.hasRemaining())
+            return;
+        state = HEAD;
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    // the worker of sink caught up with the body, or failed
+    void resume(XurlNioSink sink) throws IOException
+    {
+        if (fetch == null || fetch.sink != sink) // done or failed meanwhile
+            return;
+        if (sink.error != null)
+        {
+            fail(sink.error);
+            return;
+        }
+        last_active = System.currentTimeMillis();
+        key.interestOps(SelectionKey.OP_READ);
+        in.flip();
+        try {
+            process();
+        } finally {
+            in.compact();
+        }
+    }
+
+    void onReadable() throws IOException
+    {
+        int n = channel.read(in);
+        if (fetch == null) // idle: closed by the server, or bytes nobody asked for
+        {
+            close();
+            return;
+        }
+        if (n < 0)
+        {
+            closedByServer();
+            return;
+        }
+        last_active = System.currentTimeMillis();
+        received = true;
+        in.flip();
+        try {
+            process();
+        } finally {
+            in.compact();
+        }
+    }
+
+    void closedByServer() throws IOException
+    {
+        if (state == TO_END) // the body ends with the connection
+        {
+            done();
+            return;
+        }
+        if (!received && requests > 0 && !fetch.retried)
+        {
+            // a reused connection the server had closed, nothing of the response came, so the GET can go again
+            Xurl.debug("Reused connection was closed by the server, retrying on a new one");
+            XurlNioFetch retry = fetch;
+            retry.retried = true;
+            fetch = null;
+            close();
+            loop.dispatch(retry);
+            return;
+        }
+        throw new EOFException("Connection closed before the end of the response");
+    }
+
+    // run the state machine over what the read buffer holds
+    void process() throws IOException
+    {
+        while (fetch != null)
+        {
+            String line;
+            switch (state)
+            {
+                case HEAD:
+                    if ((line = line()) == null)
+                        return;
+                    header(line);
+                    break;
+                case BODY:
+                case CHUNK:
+                case TO_END:
+                    int n = (int) Math.min(remaining, in.remaining());
+                    if (n == 0)
+                        return;
+                    XurlNioSink sink = fetch.sink;
+                    boolean more = !save || sink.write(in.array(), in.arrayOffset() + in.position(), n);
+                    in.position(in.position() + n);
+                    fetch.body_length += n;
+                    remaining -= n;
+                    if (remaining == 0)
+                    {
+                        if (state == CHUNK)
+                            state = CHUNK_END;
+                        else
+                            done();
+                    }
+                    if (!more && fetch != null && fetch.sink == sink)
+                    {
+                        key.interestOps(0); // the worker is behind, it resumes the connection
+                        return;
+                    }
+                    if (remaining > 0)
+                        return;
+                    break;
+                case CHUNK_SIZE:
+                    if ((line = line()) == null)
+                        return;
+                    int extension = line.indexOf(';');
+                    try {
+                        remaining = Long.parseLong((extension < 0 ? line : line.substring(0, extension)).trim(), 16);
+                    } catch (NumberFormatException e) {
+                        Xurl.error("Non-numeric chunk", e.getMessage());
+                    }
+                    state = remaining == 0 ? TRAILER : CHUNK;
+                    break;
+                case CHUNK_END:
+                    if (line() == null)
+                        return;
+                    state = CHUNK_SIZE;
+                    break;
+                case TRAILER:
+                    if ((line = line()) == null)
+                        return;
+                    if (line.isEmpty())
+                        done();
+                    break;
+                default:
+                    return;
+            }
+        }
+    }
+
+    // one line of the header, at the empty line the body starts
+    void header(String line) throws IOException
+    {
+        Xurl xurl = fetch.xurl;
+        Xurl.debug(line);
+        xurl.req_header.add(line + "\r\n");
+        if (!line.isEmpty())
+            return;
+
+        xurl.analyzeHeader();
+        int status = xurl.status_code;
+        if (status / 100 == 1) // an interim response, the real one follows
+        {
+            xurl.req_header = new ArrayList<>();
+            return;
+        }
+        // the page goes to its file and the link parser, any other body nowhere
+        save = status / 100 == 2;
+        if (save)
+            fetch.sink.open();
+
+        if (status == 204 || status == 304)
+            done();
+        else if (xurl.chunked_encoding)
+            state = CHUNK_SIZE;
+        else if (xurl.content_length >= 0)
+        {
+            state = BODY;
+            remaining = xurl.content_length;
+            if (remaining == 0)
+                done();
+        }
+        else
+        {
+            state = TO_END;
+            remaining = Long.MAX_VALUE;
+            xurl.keep_alive = false; // the body ends when the server closes the connection
+        }
+    }
+
+    // the response is complete
+    void done() throws IOException
+    {
+        XurlNioFetch fetch = this.fetch;
+        Xurl xurl = fetch.xurl;
+        this.fetch = null;
+        requests++;
+
+        XurlResponse response = new XurlResponse();
+        response.url = fetch.url;
+        response.status = xurl.status_code;
+        response.header = xurl.req_header;
+        response.body_length = fetch.body_length;
+
+        // bytes past the response would put the next one out of step
+        if (xurl.keep_alive && XurlPool.POOL && !in.hasRemaining() && state != TO_END)
+            loop.release(this);
+        else
+            close();
+        fetch.sink.finish(response); // once the end of the page is parsed
+    }
+
+    // a header or chunk line from the read buffer, null until it is complete
+    String line() throws IOException
+    {
+        int start = in.position();
+        for (int i = start; i < in.limit(); i++)
+            if (in.get(i) == '\n')
+            {
+                int end = i > start && in.get(i - 1) == '\r' ? i - 1 : i;
+                in.position(i + 1);
+                return new String(in.array(), in.arrayOffset() + start, end - start, StandardCharsets.ISO_8859_1);
+            }
+        if (in.remaining() == in.capacity())
+            throw new IOException("Line longer than " + in.capacity() + " bytes");
+        return null;
+    }
+
+    void fail(Throwable e)
+    {
+        XurlNioFetch fetch = this.fetch;
+        this.fetch = null;
+        close();
+        if (fetch != null)
+        {
+            Xurl.debug("Failed to download " + fetch.url + ": " + e.getMessage());
+            fetch.sink.fail(e);
+        }
+    }
+
+    void close()
+    {
+        if (closed)
+            return;
+        closed = true;
+        if (key != null)
+            key.cancel();
+        try {
+            if (channel != null)
+                channel.close();
+        } catch (IOException ignored) {}
+        loop.closed(this);
+    }
+}
+
+
+class XurlNioSink implements Runnable
+{
+    static final int MAX_PENDING = 1 << 20; // bytes of a body ahead of its worker
+
+    interface Task
+    {
+        void run() throws IOException;
+    }
+
+    XurlNioFetch fetch;
+    volatile XurlNioConnection conn;    // set by the loop when the fetch starts on a connection
+    Queue<Task> tasks = new ConcurrentLinkedQueue<>();
+    AtomicBoolean running = new AtomicBoolean();
+    AtomicLong pending = new AtomicLong();
+    AtomicBoolean paused = new AtomicBoolean();
+    XurlOutput output;                  // only used by the worker
+    volatile Throwable error;           // the fetch failed, the tasks left are skipped
+
+    public XurlNioSink(XurlNioFetch fetch)
+    {
+        this.fetch = fetch;
+    }
+
+    //
+    // on the loop
+    //
+
+    void open()
+    {
+        post(() -> {
+            fetch.xurl.openFile();
+            output = fetch.xurl.output;
+        });
+    }
+
+    // false when the worker is too far behind, the connection stops reading until resumed
+    boolean write(byte[] b, int off, int len)
+    {
+        byte[] copy = Arrays.copyOfRange(b, off, off + len);
+        pending.addAndGet(len);
+        post(() -> {
+            output.write(copy, 0, copy.length);
+            if (pending.addAndGet(-copy.length) < MAX_PENDING && paused.compareAndSet(true, false))
+                conn.loop.resume(this);
+        });
+        if (pending.get() < MAX_PENDING)
+            return true;
+        paused.set(true);
+        // the worker may have caught up in the meantime
+        return pending.get() < MAX_PENDING && paused.compareAndSet(true, false);
+    }
+
+    // response.file is set here, the file is opened by the worker
+    void finish(XurlResponse response)
+    {
+        post(() -> {
+            if (output != null)
+            {
+                output.close(); // parses the end of the page
+                response.file = fetch.xurl.output_file;
+            }
+            fetch.future.complete(response);
+        });
+    }
+
+    void fail(Throwable e)
+    {
+        post(() -> failed(e));
+    }
+
+    //
+    // on the worker
+    //
+
+    void post(Task task)
+    {
+        tasks.add(task);
+        if (running.compareAndSet(false, true))
+            XurlNio.workers.execute(this);
+    }
+
+    // the tasks in order, one worker at a time
+    @Override
+    public void run()
+    {
+        do
+        {
+            Task task;
+            while ((task = tasks.poll()) != null)
+            {
+                if (error != null)
+                    continue;
+                try {
+                    task.run();
+                } catch (IOException | RuntimeException e) {
+                    failed(e);
+                    conn.loop.resume(this); // the connection fails as well
+                }
+            }
+            running.set(false);
+        } while (!tasks.isEmpty() && running.compareAndSet(false, true));
+    }
+
+    void failed(Throwable e)
+    {
+        error = e;
+        if (output != null)
+            try {
+                output.file.close();
+            } catch (IOException ignored) {}
+        fetch.future.completeExceptionally(e);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+*       XurlOutput - Streaming response bodies of Xurl
+*
+*       Architecture:
+*       * class XurlOutput takes the body of a response block by block, as it is read from the socket,
+*           and passes every block on right away: to the output file and, when the links of the page are
+*           wanted, through a charset decoder to the link parser
+*           a download holds its fixed read buffer and the parser window, whatever the size of the file
+*       * the decoded text is parsed in windows: the text up to the last tag start is parsed and dropped,
+*           the unfinished tag stays for the next block, so a link split between two reads is still found
+*           a tag start more than MAX_TAG chars back cannot be a link anymore and is dropped as well
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+
+public class XurlOutput
+{
+    static final int MAX_TAG = 8192; // chars
+
+    OutputStream file;
+    CharsetDecoder decoder;     // null when the page is not parsed
+    ByteBuffer bytes;           // undecoded input, a split multi-byte char waits here for its rest
+    CharBuffer chars;
+    StringBuilder window = new StringBuilder();
+
+    public XurlOutput(OutputStream file, Charset charset)
+    {
+        this.file = file;
+        if (charset != null)
+        {
+            decoder = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            bytes = ByteBuffer.allocate(XurlInput.BUFFER);
+            chars = CharBuffer.allocate(XurlInput.BUFFER);
+        }
+    }
+
+    void write(byte[] b, int off, int len) throws IOException
+    {
+        file.write(b, off, len);
+        if (decoder == null)
+            return;
+        while (len > 0)
+        {
+            int n = Math.min(len, bytes.remaining());
+            bytes.put(b, off, n);
+            off += n;
+            len -= n;
+            bytes.flip();
+            decode(false);
+            bytes.compact();
+        }
+        scan(false);
+    }
+
+    // the body is complete: parse what is left and close the file
+    void close() throws IOException
+    {
+        file.close();
+        if (decoder == null)
+            return;
+        bytes.flip();
+        decode(true);
+        while (decoder.flush(chars).isOverflow())
+            drain();
+        drain();
+        scan(true);
+    }
+
+    // decode what bytes holds into the window
+    void decode(boolean last)
+    {
+        while (decoder.decode(bytes, chars, last).isOverflow())
+            drain();
+        drain();
+    }
+
+    void drain()
+    {
+        chars.flip();
+        window.append(chars);
+        chars.clear();
+    }
+
+    // parse the window up to the tag that may still be incomplete
+    void scan(boolean last)
+    {
+        int cut = window.length();
+        if (!last)
+        {
+            int start = Math.max(window.lastIndexOf("<"), window.lastIndexOf("≺"));
+            if (start >= 0 && window.length() - start <= MAX_TAG)
+                cut = start;
+        }
+        if (cut == 0)
+            return;
+        DocumentProcessing.parseBuffer(window.substring(0, cut));
+        window.delete(0, cut);
+    }
+}
@@ -0,0 +1,175 @@
+/*
+*       XurlPool - Keep-alive connections of Xurl
+*
+*       Architecture:
+*       * class XurlPool keeps the connections of every host:port (of the proxy, when one is used) in a
+*           ConcurrentHashMap, so the downloads of all threads to one host share a few warm connections
+*           a download takes the most recently returned idle connection, opens a new one while the host is
+*           below its cap, or else waits until one is returned - a connection goes back to the pool after
+*           a complete response of known length, instead of being closed
+*           an eviction thread closes the connections idle for longer than the idle timeout and drops the
+*           hosts without connections, so the map only holds the hosts that are being crawled
+*       * the state of one host is an XurlHost, its connections are XurlConnections, see XurlConnection
+*           for how a connection that was idle for a while is checked before it is reused
+*
+*       Configuration (system properties):
+*           xurl.pool               reuse connections between downloads (default true)
+*           xurl.max_per_host       most open connections per host, downloads above it wait (default 6)
+*           xurl.idle_timeout       ms an idle connection is kept open (default 4000)
+*           xurl.validate_after     ms idle after which a connection is checked before reuse (default 1000)
+ */
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+public class XurlPool
+{
+    static boolean POOL = Boolean.parseBoolean(System.getProperty("xurl.pool", "true"));
+    static int MAX_PER_HOST = Integer.getInteger("xurl.max_per_host", 6);
+    static int IDLE_TIMEOUT = Integer.getInteger("xurl.idle_timeout", 4000);
+    static int VALIDATE_AFTER = Integer.getInteger("xurl.validate_after", 1000);
+    static final int EVICT_INTERVAL = 1000; // ms
+
+    static final XurlPool pool = POOL ? new XurlPool() : null; // shared by all downloads, null when disabled
+
+    ConcurrentHashMap<String, XurlHost> hosts = new ConcurrentHashMap<>();
+    LongAdder opened = new LongAdder();
+    LongAdder reused = new LongAdder();
+    Thread evictor;
+
+    public XurlPool()
+    {
+        evictor = new Thread(this::evict, "xurl-pool-evict");
+        evictor.setDaemon(true);
+        evictor.start();
+    }
+
+    // a connection to host:port, idle or new - waits while the host is at its cap
+    XurlConnection acquire(String host, int port, int timeout) throws IOException
+    {
+        String key = host + ":" + port;
+        while (true)
+        {
+            XurlHost entry = hosts.computeIfAbsent(key, k -> new XurlHost());
+            XurlConnection conn;
+            synchronized (entry)
+            {
+                if (entry.removed) // evicted under us, take the new entry
+                    continue;
+                conn = entry.idle.pollFirst();
+                if (conn == null && entry.open >= MAX_PER_HOST)
+                {
+                    try {
+                        entry.wait(timeout);
+                        continue;
+                    } catch (InterruptedException e) {
+                        // do not hold up a shutdown, go above the cap instead
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                if (conn == null)
+                    entry.open++; // the slot of the new connection
+            }
+            // connected and checked outside of the lock
+            if (conn == null)
+                return open(entry, host, port, timeout);
+            if (conn.alive())
+            {
+                reused.increment();
+                return conn;
+            }
+            Xurl.debug("Dropped stale connection to " + key);
+            discard(conn);
+        }
+    }
+
+    // a new connection, its slot in entry.open is taken already
+    XurlConnection open(XurlHost entry, String host, int port, int timeout) throws IOException
+    {
+        try
+        {
+            XurlConnection conn = new XurlConnection(entry, host, port, timeout);
+            opened.increment();
+            return conn;
+        }
+        catch (IOException e)
+        {
+            synchronized (entry)
+            {
+                entry.open--;
+                entry.notify();
+            }
+            throw e;
+        }
+    }
+
+    // a connection whose response was read completely, it can serve the next request
+    void release(XurlConnection conn)
+    {
+        conn.idle_since = System.nanoTime();
+        synchronized (conn.host)
+        {
+            conn.host.idle.addFirst(conn);
+            conn.host.notify();
+        }
+    }
+
+    // a connection that cannot be reused
+    void discard(XurlConnection conn)
+    {
+        conn.close();
+        synchronized (conn.host)
+        {
+            conn.host.open--;
+            conn.host.notify();
+        }
+    }
+
+    //
+    // EVICTION
+    //
+
+    void evict()
+    {
+        while (true)
+        {
+            try {
+                TimeUnit.MILLISECONDS.sleep(EVICT_INTERVAL);
+            } catch (InterruptedException e) {
+                break;
+            }
+            long now = System.nanoTime();
+            int closed = 0;
+            for (Map.Entry<String, XurlHost> host : hosts.entrySet())
+            {
+                XurlHost entry = host.getValue();
+                synchronized (entry)
+                {
+                    // the oldest are at the end
+                    for (Iterator<XurlConnection> it = entry.idle.descendingIterator(); it.hasNext(); )
+                    {
+                        XurlConnection conn = it.next();
+                        if (now - conn.idle_since < TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT))
+                            break;
+                        it.remove();
+                        conn.close();
+                        entry.open--;
+                        closed++;
+                    }
+                    if (entry.open == 0)
+                    {
+                        entry.removed = true;
+                        hosts.remove(host.getKey(), entry);
+                    }
+                }
+            }
+            if (closed > 0)
+                Xurl.debug("Pool closed " + closed + " idle connections, " + hosts.size() + " hosts left");
+        }
+    }
+}
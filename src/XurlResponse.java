@@ -0,0 +1,20 @@
+/*
+*       XurlResponse - Results of Xurl
+*
+*       Architecture:
+*       * class XurlResponse is the result of an asynchronous or batch download: the status, the header
+*           and, for a 2xx response, the file the body was saved to
+ */
+
+import java.io.File;
+import java.util.List;
+
+
+class XurlResponse
+{
+    String url;
+    int status;
+    List<String> header;    // as received, status line first, lines end with CRLF
+    long body_length;
+    File file;              // where the body was saved, null if the status is not 2xx
+}